@@ -3,27 +3,33 @@ package com.bosonshiggs.extendedcanvas;
 import com.google.appinventor.components.annotations.*;
 import com.google.appinventor.components.runtime.*;
 import com.google.appinventor.components.common.ComponentCategory;
+import com.google.appinventor.components.runtime.util.MediaUtil;
+import com.google.appinventor.components.runtime.util.YailDictionary;
 import com.google.appinventor.components.runtime.util.YailList;
-import com.google.appinventor.components.common.OptionList;
+import com.google.appinventor.components.common.PropertyTypeConstants;
 
+import com.bosonshiggs.extendedcanvas.helpers.BufferPool;
+import com.bosonshiggs.extendedcanvas.helpers.CanvasCommandQueue;
 import com.bosonshiggs.extendedcanvas.helpers.FloodFillHandler;
 import com.bosonshiggs.extendedcanvas.helpers.ImageType;
+import com.bosonshiggs.extendedcanvas.helpers.OperationStats;
+import com.bosonshiggs.extendedcanvas.helpers.PatternPainter;
 
-import java.lang.Thread;
-
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import android.Manifest;
 import android.os.Build;
 import android.os.Environment;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.media.MediaScannerConnection; //Update pictures
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import android.util.Log;
 
@@ -35,16 +41,225 @@ import android.util.Log;
     iconName = "images/extension.png"
 )
 @SimpleObject(external = true)
-public class ExtendedCanvas extends AndroidNonvisibleComponent {
+public class ExtendedCanvas extends AndroidNonvisibleComponent implements OnPauseListener, OnDestroyListener {
     private FloodFillHandler floodFillHandler;
+    private final CanvasCommandQueue commandQueue = new CanvasCommandQueue();
+    private final CanvasCommandQueue exportQueue = new CanvasCommandQueue(); // Encoding never delays fills
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+    private int exportQuality = 100;
     private Canvas canvasComponent; // Reference to the Kodular Canvas component
     private String LOG_NAME = "ExtendedCanvas";
     private boolean flagLog = false;
-    private Bitmap gridBitmap;
+    private int historyMemoryLimit = 32; // Megabytes
+    private int maxUndoSteps = 10;
+    private boolean diskHistory = false;
+    private boolean regionCache = false;
+    private boolean spriteBoundaries = false;
+    private boolean parallelFill = false;
+    private int parallelFillThreshold = 1024 * 1024; // Pixels
+    private boolean progressiveFill = false;
+    private int progressiveFillInterval = 16; // Milliseconds
+    private int fillTimeLimit = 0; // Milliseconds, 0 = no limit
+    private int fillPixelLimit = 0; // 0 = no limit
+    private int bufferPoolLimit = 32; // Megabytes
+    private String targetLayer = ""; // Empty = top layer
+    private String boundaryLayer = ""; // Empty = the target layer
+    private int memoryUndoSteps = 3;
+    private boolean compressSession = true;
+    private int nextSelection = 1; // Handles returned by SelectRegion; only used on the UI thread
+    private volatile boolean reportStats = false;
     
     public ExtendedCanvas(ComponentContainer container) {
         super(container.$form());
         floodFillHandler = new FloodFillHandler();
+        floodFillHandler.setProgressListener(new FloodFillHandler.ProgressListener() {
+            @Override
+            public void onFillProgress(final int percent) {
+            	form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	FillProgress(percent);
+                    }
+                });
+            }
+        });
+        floodFillHandler.setCancelListener(new FloodFillHandler.CancelListener() {
+            @Override
+            public void onFillCancelled(final String reason) {
+            	form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	FillCancelled(reason);
+                    }
+                });
+            }
+        });
+        floodFillHandler.setStatsListener(new FloodFillHandler.StatsListener() {
+            @Override
+            public void onOperationCompleted(final OperationStats stats) {
+                if (!reportStats) {
+                    return;
+                }
+            	form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	OperationCompleted(toDictionary(stats));
+                    }
+                });
+            }
+        });
+        form.registerForOnPause(this);
+        form.registerForOnDestroy(this);
+    }
+
+    // With DiskHistory the Undo steps go to disk whenever the app leaves the screen,
+    // so they are still there if Android kills it in the background
+    @Override
+    public void onPause() {
+        if (diskHistory) {
+            commandQueue.submit(new CanvasCommand("DiskHistory") {
+                @Override
+                protected void execute() {
+                	floodFillHandler.flushHistory();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        commandQueue.submit(new CanvasCommand("DiskHistory") {
+            @Override
+            protected void execute() {
+            	try {
+            		floodFillHandler.closeHistory();
+            	} finally {
+            		floodFillHandler.shutdownPool();
+            	}
+            }
+        });
+        // The worker threads end once the commands already queued, this one last, have run
+        commandQueue.shutdown();
+        exportQueue.shutdown();
+    }
+
+    // Base of every queued canvas operation: failures are reported through ReportError on the UI thread
+    private abstract class CanvasCommand extends CanvasCommandQueue.Command {
+        final String name;
+        private final long fillTicket; // Taken when queued, so CancelFill reaches fills not started yet
+
+        CanvasCommand(String name) {
+            this.name = name;
+            this.fillTicket = floodFillHandler.nextFillTicket();
+        }
+
+        protected abstract void execute();
+
+        // Commands that run outside the canvas worker must not touch the handler's counters
+        protected boolean isMeasured() {
+            return true;
+        }
+
+        @Override
+        public final void run() {
+            boolean measured = isMeasured();
+            if (measured) {
+            	floodFillHandler.beginOperation(fillTicket);
+            }
+            try {
+                execute();
+            } catch (final Exception e) {
+                if (flagLog) Log.e(LOG_NAME, "Error in " + name + ": " + e.getMessage(), e);
+                postError(name + " - Error: " + e.getMessage());
+            } catch (final OutOfMemoryError e) {
+                // Full-size buffers and bitmaps are allocated here; report it and keep the queue alive
+                if (flagLog) Log.e(LOG_NAME, "Out of memory in " + name, e);
+                postError(name + " - Error: out of memory");
+            }
+            if (measured) {
+            	floodFillHandler.endOperation(name);
+            }
+        }
+    }
+
+    // A fill whose seed already has the new color changes nothing and is skipped
+    // without snapshotting; an identical fill queued right after it is dropped
+    private abstract class FillCommand extends CanvasCommand {
+        final int x, y, newColor;
+        private final float[] params;
+
+        FillCommand(String name, int x, int y, int newColor, float... params) {
+            super(name);
+            this.x = x;
+            this.y = y;
+            this.newColor = newColor;
+            this.params = params;
+        }
+
+        protected abstract void fill();
+
+        protected boolean isRedundant() {
+            return floodFillHandler.isFilledWith(x, y, newColor);
+        }
+
+        @Override
+        protected void execute() {
+            if (isRedundant()) {
+                if (flagLog) Log.d(LOG_NAME, name + " skipped, region already filled");
+                return;
+            }
+            fill();
+        }
+
+        @Override
+        protected CanvasCommandQueue.Command coalesce(CanvasCommandQueue.Command next) {
+            if (next instanceof FillCommand) {
+                FillCommand other = (FillCommand) next;
+                if (name.equals(other.name) && x == other.x && y == other.y
+                        && newColor == other.newColor && Arrays.equals(params, other.params)) {
+                    return this;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Consecutive undos (or redos) collapse into one command that repaints once
+    private class HistoryCommand extends CanvasCommand {
+        final boolean undo;
+        final int steps;
+
+        HistoryCommand(boolean undo, int steps) {
+            super(undo ? "UndoCanvas" : "RedoCanvas");
+            this.undo = undo;
+            this.steps = steps;
+        }
+
+        @Override
+        protected void execute() {
+            if (undo) {
+                floodFillHandler.undo(steps);
+            } else {
+                floodFillHandler.redo(steps);
+            }
+        }
+
+        @Override
+        protected CanvasCommandQueue.Command coalesce(CanvasCommandQueue.Command next) {
+            if (next instanceof HistoryCommand && ((HistoryCommand) next).undo == undo) {
+                return new HistoryCommand(undo, steps + ((HistoryCommand) next).steps);
+            }
+            return null;
+        }
+    }
+
+    private void postError(final String errorMessage) {
+        form.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ReportError(errorMessage);
+            }
+        });
     }
 
     @SimpleFunction(description = "Perform flood fill from a point with a specified color. "
@@ -56,18 +271,12 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
     		final int newColor, 
     		final int density) 
     {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new FillCommand("FloodFillDensity", x, y, newColor, density) {
             @Override
-            public void run() {
-            	try {
-            		//Run floodFillHandler
-            		floodFillHandler.floodFillDensity(x, y, newColor, density); // Now the canvas reference is passed correctly
-            	} catch (final Exception e) {
-                	if (flagLog) Log.e(LOG_NAME, "Error in FastFloodFill: " + e.getMessage(), e);
-                    ReportError("FastFloodFill - Error: " + e.getMessage());
-                }
+            protected void fill() {
+            	floodFillHandler.floodFillDensity(x, y, newColor, density);
             }
-        }).start();
+        });
     }
     
     @SimpleFunction(description = "Perform flood fill from a point with a specified color. "
@@ -82,17 +291,12 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
     		final int pointSize, 
     		final int density) 
     {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new FillCommand("FloodFillPontSizeDensity", x, y, newColor, pointSize, density) {
             @Override
-            public void run() {
-            	try {
-            		floodFillHandler.floodFillPontSizeDensity(x, y, newColor, pointSize, density); // Now the canvas reference is passed correctly
-            	} catch (final Exception e) {
-                	if (flagLog) Log.e(LOG_NAME, "Error in FastFloodFill: " + e.getMessage(), e);
-                    ReportError("FastFloodFill - Error: " + e.getMessage());
-                }
-		    }
-		}).start();
+            protected void fill() {
+            	floodFillHandler.floodFillPontSizeDensity(x, y, newColor, pointSize, density);
+            }
+        });
     }
     
     @SimpleFunction(description = "Perform flood fill from a point with a specified color.")
@@ -102,17 +306,12 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
     		final int newColor, 
     		final float radius) 
     {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new FillCommand("FloodFillCircle", x, y, newColor, radius) {
             @Override
-            public void run() {
-            	try {
-            		floodFillHandler.floodFillCircle(x, y, newColor, radius); // Now the canvas reference is passed correctly
-            	} catch (final Exception e) {
-                	if (flagLog) Log.e(LOG_NAME, "Error in FastFloodFill: " + e.getMessage(), e);
-                    ReportError("FastFloodFill - Error: " + e.getMessage());
-                }
-		    }
-		}).start();
+            protected void fill() {
+            	floodFillHandler.floodFillCircle(x, y, newColor, radius);
+            }
+        });
     }
     
     @SimpleFunction(description = "Perform flood fill from a point with a specified color.")
@@ -121,92 +320,836 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
     		final int y, 
     		final int newColor) 
     {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new FillCommand("FastFloodFill", x, y, newColor) {
             @Override
-            public void run() {
+            protected void fill() {
+            	floodFillHandler.fastFloodFill(x, y, newColor);
+            }
+        });
+    }
+    
+    @SimpleFunction(description = "Perform flood fill from a point with a specified color, also filling connected pixels "
+    		+ "whose color is close to the color of the point. Tolerance (0-255) is the largest difference allowed in each "
+    		+ "of the alpha, red, green and blue channels, so anti-aliased edges of strokes are filled in a single fill.")
+    public void FloodFillTolerance(
+    		final int x, 
+    		final int y, 
+    		final int newColor, 
+    		final int tolerance) 
+    {
+    	commandQueue.submit(new FillCommand("FloodFillTolerance", x, y, newColor, tolerance) {
+            @Override
+            protected boolean isRedundant() {
+            	// Neighbours within tolerance may still differ from the new color
+            	return tolerance <= 0 && super.isRedundant();
+            }
+
+            @Override
+            protected void fill() {
+            	floodFillHandler.floodFillTolerance(x, y, newColor, tolerance);
+            }
+        });
+    }
+    
+    @SimpleFunction(description = "Performs many flood fills at once. Seeds is a list of [x, y, color] lists, "
+    		+ "filled in order. A seed inside a region already filled by an earlier seed of the list is skipped. "
+    		+ "The whole batch is a single Undo step and redraws the Canvas once.")
+    public void BatchFloodFill(YailList seeds) {
+    	final int[] triples = new int[seeds.size() * 3];
+    	try {
+    		for (int i = 0; i < seeds.size(); i++) {
+    			Object item = seeds.getObject(i);
+    			if (!(item instanceof YailList) || ((YailList) item).size() < 3) {
+    				throw new IllegalArgumentException("item " + (i + 1) + " is not a list of x, y and color");
+    			}
+    			YailList seed = (YailList) item;
+    			for (int j = 0; j < 3; j++) {
+    				triples[i * 3 + j] = toInt(seed.getObject(j));
+    			}
+    		}
+    	} catch (IllegalArgumentException e) {
+    		postError("BatchFloodFill - Error: " + e.getMessage());
+    		return;
+    	}
+    	if (triples.length == 0) {
+    		return;
+    	}
+    	commandQueue.submit(new CanvasCommand("BatchFloodFill") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.batchFloodFill(triples);
+            }
+        });
+    }
+    
+    // Blocks numbers arrive as Integer, Long, Double or gnu.math types (all Numbers), text as String.
+    // Goes through long so colors above 0x7FFFFFFF (e.g. 0xFF000000) keep their bits.
+    private static int toInt(Object value) {
+    	if (value instanceof Number) {
+    		return (int) ((Number) value).longValue();
+    	}
+    	try {
+    		return (int) Long.parseLong(String.valueOf(value).trim());
+    	} catch (NumberFormatException e) {
+    		try {
+    			return (int) (long) Double.parseDouble(String.valueOf(value).trim());
+    		} catch (NumberFormatException e2) {
+    			throw new IllegalArgumentException("not a number: " + value);
+    		}
+    	}
+    }
+    
+    @SimpleFunction(description = "Replaces oldColor with newColor everywhere on the Canvas, in every region at once, "
+    		+ "not only the region around a point. Tolerance (0-255) works like in FloodFillTolerance. A single Undo step.")
+    public void ReplaceColor(final int oldColor, final int newColor, final int tolerance) {
+    	commandQueue.submit(new CanvasCommand("ReplaceColor") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.replaceColor(oldColor, newColor, tolerance);
+            }
+        });
+    }
+    
+    @SimpleFunction(description = "Fills the region at a point with a repeating pattern instead of a solid color. "
+    		+ "Pattern is \"dots\", \"hatch\", \"crosshatch\" or \"checker\"; size is the pattern cell in pixels. "
+    		+ "Use None as backgroundColor to keep the region's current color between the pattern marks. "
+    		+ "Costs about the same as a solid fill.")
+    public void FloodFillPattern(
+    		final int x, 
+    		final int y, 
+    		final int color, 
+    		final int backgroundColor, 
+    		final String pattern, 
+    		final int size) 
+    {
+    	commandQueue.submit(new FillCommand("FloodFillPattern", x, y, color, backgroundColor, size) {
+            @Override
+            protected boolean isRedundant() {
+            	return false;
+            }
+
+            @Override
+            protected CanvasCommandQueue.Command coalesce(CanvasCommandQueue.Command next) {
+            	return null; // The pattern name is not part of the compared parameters
+            }
+
+            @Override
+            protected void fill() {
+            	int cell = Math.max(2, size);
+            	int[] tile = PatternPainter.createTile(pattern.trim().toLowerCase(), cell, color, backgroundColor);
+            	floodFillHandler.floodFillTexture(x, y, tile, cell, cell);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Fills the region at a point with a gradient from colorA to colorB. "
+    		+ "Type \"linear\" runs across the region along angle (degrees: 0 = left to right, 90 = top to bottom); "
+    		+ "type \"radial\" starts at the point and reaches colorB at the farthest corner of the region (angle is ignored).")
+    public void FloodFillGradient(
+    		final int x, 
+    		final int y, 
+    		final int colorA, 
+    		final int colorB, 
+    		final String type, 
+    		final float angle) 
+    {
+    	final boolean radial = "radial".equalsIgnoreCase(type.trim());
+    	if (!radial && !"linear".equalsIgnoreCase(type.trim())) {
+    		postError("FloodFillGradient - Error: unknown type " + type + ", use linear or radial");
+    		return;
+    	}
+    	commandQueue.submit(new FillCommand("FloodFillGradient", x, y, colorA, colorB, radial ? 1 : 0, angle) {
+            @Override
+            protected boolean isRedundant() {
+            	return false;
+            }
+
+            @Override
+            protected void fill() {
+            	floodFillHandler.floodFillGradient(x, y, colorA, colorB, radial, angle);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Fills the region at a point by tiling a small image (an asset or a file path) "
+    		+ "from the top-left corner of the Canvas. Transparent pixels of the image keep the region's current color. "
+    		+ "Images larger than 256 pixels on a side are scaled down to fit.")
+    public void FloodFillImage(final int x, final int y, final String image) {
+    	commandQueue.submit(new FillCommand("FloodFillImage", x, y, 0) {
+            @Override
+            protected boolean isRedundant() {
+            	return false;
+            }
+
+            @Override
+            protected CanvasCommandQueue.Command coalesce(CanvasCommandQueue.Command next) {
+            	return null;
+            }
+
+            @Override
+            protected void fill() {
+            	Bitmap bitmap;
             	try {
-	        		// Any UI update or event call must be done on the UI thread
-	            	floodFillHandler.fastFloodFill(x, y, newColor);
-            	} catch (final Exception e) {
-            		if (flagLog) Log.e(LOG_NAME, "Error in FastFloodFill: " + e.getMessage(), e);
-                    ReportError("FastFloodFill - Error: " + e.getMessage());
-                }
-		    }
-		}).start();
+            		bitmap = MediaUtil.getBitmapDrawable(form, image).getBitmap();
+            	} catch (IOException e) {
+            		throw new IllegalArgumentException("Cannot load " + image + ": " + e.getMessage(), e);
+            	}
+            	int tileWidth = bitmap.getWidth(), tileHeight = bitmap.getHeight();
+            	Bitmap scaled = null;
+            	int largest = Math.max(tileWidth, tileHeight);
+            	if (largest > PatternPainter.MAX_TILE_SIZE) {
+            		// Keep the aspect ratio; the original bitmap may be cached by MediaUtil, so only the copy is recycled
+            		tileWidth = Math.max(1, (int) ((long) tileWidth * PatternPainter.MAX_TILE_SIZE / largest));
+            		tileHeight = Math.max(1, (int) ((long) tileHeight * PatternPainter.MAX_TILE_SIZE / largest));
+            		scaled = Bitmap.createScaledBitmap(bitmap, tileWidth, tileHeight, true);
+            		bitmap = scaled;
+            	}
+            	BufferPool bufferPool = floodFillHandler.getBufferPool();
+            	int[] tile = bufferPool.acquireArray(tileWidth * tileHeight);
+            	try {
+            		bitmap.getPixels(tile, 0, tileWidth, 0, 0, tileWidth, tileHeight);
+            		floodFillHandler.floodFillTexture(x, y, tile, tileWidth, tileHeight);
+            	} finally {
+            		bufferPool.releaseArray(tile);
+            		if (scaled != null) {
+            			scaled.recycle();
+            		}
+            	}
+            }
+        });
     }
     
+    @SimpleFunction(description = "Adds a transparent layer on top of the others. While the Canvas has layers, fills paint "
+    		+ "on TargetLayer and the Canvas shows the visible layers composed together. The first layer starts with what "
+    		+ "the Canvas shows now. Adding or removing a layer clears the Undo history.")
+    public void AddLayer(final String name) {
+    	commandQueue.submit(new CanvasCommand("AddLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.addLayer(name);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Removes a layer and redraws the Canvas without it. "
+    		+ "With no layers left, the Canvas keeps what it shows and fills work on it again.")
+    public void RemoveLayer(final String name) {
+    	commandQueue.submit(new CanvasCommand("RemoveLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.removeLayer(name);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Shows or hides a layer.")
+    public void SetLayerVisible(final String name, final boolean visible) {
+    	commandQueue.submit(new CanvasCommand("SetLayerVisible") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setLayerVisible(name, visible);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Sets the opacity of a layer, from 0 (invisible) to 100 (opaque).")
+    public void SetLayerOpacity(final String name, final int opacity) {
+    	final int alpha = (Math.max(0, Math.min(100, opacity)) * 255 + 50) / 100;
+    	commandQueue.submit(new CanvasCommand("SetLayerOpacity") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setLayerOpacity(name, alpha);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Makes every pixel of a layer transparent. Can be undone.")
+    public void ClearLayer(final String name) {
+    	commandQueue.submit(new CanvasCommand("ClearLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.clearLayer(name);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Replaces the content of a layer with the current Canvas background, for example line art "
+    		+ "drawn with the Canvas blocks. Can be undone.")
+    public void CopyCanvasToLayer(final String name) {
+    	commandQueue.submit(new CanvasCommand("CopyCanvasToLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.copyCanvasToLayer(name);
+            }
+        });
+    }
+
+    @SimpleProperty(description = "Names of the layers, from the bottom one to the top one.")
+    public YailList LayerNames() {
+        return YailList.makeList(floodFillHandler.getLayerNames());
+    }
+
+    @SimpleProperty(description = "Memory, in bytes, used by the pixels of all layers.")
+    public long LayersMemory() {
+        return floodFillHandler.getLayersBytes();
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING, defaultValue = "")
+    @SimpleProperty(description = "Layer the fills paint on. Empty means the top layer.")
+    public void TargetLayer(String name) {
+        final String layer = name == null ? "" : name.trim();
+        this.targetLayer = layer;
+        // A running fill resolves its layer once: the change waits for it on the worker
+        commandQueue.submit(new CanvasCommand("TargetLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setTargetLayer(layer);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public String TargetLayer() {
+        return targetLayer;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING, defaultValue = "")
+    @SimpleProperty(description = "Layer whose colors decide where a fill stops, for example a line art layer while "
+    		+ "TargetLayer is a colors layer below it. Empty means TargetLayer itself.")
+    public void BoundaryLayer(String name) {
+        final String layer = name == null ? "" : name.trim();
+        this.boundaryLayer = layer;
+        commandQueue.submit(new CanvasCommand("BoundaryLayer") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setBoundaryLayer(layer);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public String BoundaryLayer() {
+        return boundaryLayer;
+    }
+
+    @SimpleFunction(description = "Selects the region at a point, like FloodFillTolerance would fill it, and returns a "
+    		+ "handle to the selection. Fill, clear or save it, or combine it with other selections, without searching the "
+    		+ "region again. Call ReleaseSelection when it is no longer needed. If the region cannot be selected, "
+    		+ "ReportError is raised and the handle refers to an empty selection.")
+    public int SelectRegion(final int x, final int y, final int tolerance) {
+    	final int selection = nextSelection++;
+    	commandQueue.submit(new CanvasCommand("SelectRegion") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.selectRegion(selection, x, y, tolerance);
+            }
+        });
+    	return selection;
+    }
+
+    @SimpleFunction(description = "Returns a new selection with the pixels of both selections.")
+    public int UnionSelections(int selection1, int selection2) {
+    	return combineSelections("UnionSelections", selection1, selection2, FloodFillHandler.SELECTION_UNION);
+    }
+
+    @SimpleFunction(description = "Returns a new selection with the pixels that are in both selections.")
+    public int IntersectSelections(int selection1, int selection2) {
+    	return combineSelections("IntersectSelections", selection1, selection2, FloodFillHandler.SELECTION_INTERSECT);
+    }
+
+    @SimpleFunction(description = "Returns a new selection with the pixels of selection1 that are not in selection2.")
+    public int SubtractSelections(int selection1, int selection2) {
+    	return combineSelections("SubtractSelections", selection1, selection2, FloodFillHandler.SELECTION_SUBTRACT);
+    }
+
+    private int combineSelections(String name, final int first, final int second, final int operation) {
+    	final int selection = nextSelection++;
+    	commandQueue.submit(new CanvasCommand(name) {
+            @Override
+            protected void execute() {
+            	floodFillHandler.combineSelections(selection, first, second, operation);
+            }
+        });
+    	return selection;
+    }
+
+    @SimpleFunction(description = "Paints every pixel of a selection with a color, as a single Undo step.")
+    public void FillSelection(final int selection, final int color) {
+    	commandQueue.submit(new CanvasCommand("FillSelection") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.fillSelection(selection, color);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Makes every pixel of a selection transparent, so the Canvas background (or the layers "
+    		+ "below) shows through. A single Undo step.")
+    public void ClearSelection(final int selection) {
+    	commandQueue.submit(new CanvasCommand("ClearSelection") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.fillSelection(selection, Color.TRANSPARENT);
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Saves the pixels of a selection as a PNG image, cropped to the selection and transparent "
+    		+ "outside it, in the same folder as DownloadCanvasImage. Raises ImageDownloaded when done.")
+    public void CopySelectionToImage(final int selection, String imageName, final String myDirName) {
+        if (Build.VERSION.SDK_INT < 30) {
+            if (form.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                form.requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, 1);
+                return;
+            }
+        }
+        final String fileName = imageName + ".png";
+    	commandQueue.submit(new CanvasCommand("CopySelectionToImage") {
+            @Override
+            protected void execute() {
+            	final Bitmap copy = floodFillHandler.copySelection(selection);
+            	if (copy == null) {
+            		throw new IllegalStateException("selection " + selection + " is empty");
+            	}
+            	// Encoded on the export worker, like DownloadCanvasImage
+            	exportQueue.submit(new CanvasCommand("CopySelectionToImage") {
+                    @Override
+                    protected boolean isMeasured() {
+                        return false;
+                    }
+
+                    @Override
+                    protected void execute() {
+                        try {
+                        	writeImage(copy, Bitmap.CompressFormat.PNG, 100, myDirName, fileName);
+                        } finally {
+                        	floodFillHandler.getBufferPool().releaseBitmap(copy);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Frees the memory of a selection. The handle cannot be used afterwards.")
+    public void ReleaseSelection(final int selection) {
+    	commandQueue.submit(new CanvasCommand("ReleaseSelection") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.releaseSelection(selection);
+            }
+        });
+    }
+
     @SimpleFunction(description = "Undoes the last change in Canvas.")
     public void UndoCanvas() {
-    	new Thread (new Runnable() {
-		@Override
-		public void run() {
-			try 
-			{
-				floodFillHandler.undo();
-			} catch (Exception e) {
-				if (flagLog) Log.e(LOG_NAME, "Error in UndoCanvas: " + e.getMessage(), e);
-                ReportError("UndoCanvas - Error: " + e.getMessage());			
-			}
-				
-    	}
-		}).start();
+    	commandQueue.submit(new HistoryCommand(true, 1));
     }
     
     @SimpleFunction(description = "Redo the last change in Canvas.")
     public void RedoCanvas() {
-    	new Thread(new Runnable() {
-    		@Override
-    		public void run() {
-    			try {
-					floodFillHandler.redo();  				
-    			} catch (final Exception e) {
-    				if (flagLog) Log.e(LOG_NAME, "Error in RedoCanvas: " + e.getMessage(), e);
-                    ReportError("RedoCanvas - Error: " + e.getMessage());				
-    			}
-    		}
-    	}).start();
-    	
+    	commandQueue.submit(new HistoryCommand(false, 1));
     }
     
     @SimpleFunction(description = "Method for saving the current state of the Canvas to be used with the Undo and Redo methods.\n"
-    		+ "Careful! Saving too many states can lead to excessive memory consumption.\n"
-    		+ "By default, the method saves the initial state of the application.")
+    		+ "Fills already record their own Undo steps, storing only the area they changed.\n"
+    		+ "The history is limited by HistoryMemoryLimit and MaxUndoSteps; the oldest steps are discarded first.")
     public void saveCurrentState() {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new CanvasCommand("saveCurrentState") {
             @Override
-            public void run() {
-            	try {
-            		floodFillHandler.saveCurrentState();
-            		SaveCurrentStateReady();
-            	} catch(Exception e) {
-            		if (flagLog) Log.e(LOG_NAME, "Error: " + e.getMessage(), e);
-            		ReportError("saveCurrentState - Error: " + e.getMessage());
-            	}
+            protected void execute() {
+            	floodFillHandler.saveCurrentState();
+            	form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	SaveCurrentStateReady();
+                    }
+                });
             }
-		}).start();
+        });
     }
     
-    @SimpleFunction(description = "In this clearMemory method, the Undo and Redo stacks are emptied, and the bitmaps in each stack are recycled.\n"
+    @SimpleFunction(description = "In this clearMemory method, the Undo and Redo history is emptied and the working bitmap is recycled.\n"
     		+ "The recycle method is called on each Bitmap to free up the memory resources it is using.\n"
     		+ "Note that after a bitmap is recycled, it can no longer be used. "
     		+ "Therefore, it is important to ensure that clearMemory is only called when you are sure that these bitmaps will no longer be needed.\n"
     		+ "Additionally, the call to recycle and emptying the stacks help signal to the Java garbage collector that these resources can be freed, which can help reduce the application's memory usage.")
     public void clearMemory() {
-    	new Thread(new Runnable() {
+    	commandQueue.submit(new CanvasCommand("clearMemory") {
             @Override
-            public void run() {
+            protected void execute() {
             	floodFillHandler.clearMemory();
             }
-		}).start();
+        });
+    }
+    
+    @SimpleProperty(description = "Number of canvas operations (fills, undo, redo...) waiting or running in the background queue.")
+    public int QueueDepth() {
+        return commandQueue.getDepth();
+    }
+    
+    @SimpleFunction(description = "Stops the fill that is running now, and the fills queued before this call, and puts "
+    		+ "the Canvas back as it was before them. Raises FillCancelled for each. Fills queued after the call are not "
+    		+ "affected; CancelPendingCommands drops everything still waiting.")
+    public void CancelFill() {
+        floodFillHandler.cancelFill();
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "0")
+    @SimpleProperty(description = "Maximum time, in milliseconds, a fill may run. A fill that takes longer is stopped "
+    		+ "and rolled back, raising FillCancelled. 0 means no limit.")
+    public void FillTimeLimit(int millis) {
+        this.fillTimeLimit = Math.max(0, millis);
+        submitFillLimits();
+    }
+
+    @SimpleProperty
+    public int FillTimeLimit() {
+        return fillTimeLimit;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "0")
+    @SimpleProperty(description = "Maximum number of pixels a fill may paint. A larger region is not filled: the fill is "
+    		+ "rolled back and FillCancelled is raised. 0 means no limit.")
+    public void FillPixelLimit(int pixels) {
+        this.fillPixelLimit = Math.max(0, pixels);
+        submitFillLimits();
+    }
+
+    @SimpleProperty
+    public int FillPixelLimit() {
+        return fillPixelLimit;
+    }
+
+    // Each fill reads the limits once when it begins; they change between fills, on the worker
+    private void submitFillLimits() {
+        final int millis = fillTimeLimit;
+        final int pixels = fillPixelLimit;
+        commandQueue.submit(new CanvasCommand("FillLimits") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setFillLimits(millis, pixels);
+            }
+        });
+    }
+    
+    @SimpleFunction(description = "Discards every queued canvas operation that has not started yet. "
+    		+ "Returns how many operations were discarded.")
+    public int CancelPendingCommands() {
+        return commandQueue.cancelPending();
     }
     	
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "32")
+    @SimpleProperty(description = "Maximum memory, in megabytes, used by the Undo and Redo history. "
+    		+ "When it is exceeded the oldest steps are discarded. The last step is always kept, even if it alone "
+    		+ "is larger than the limit.")
+    public void HistoryMemoryLimit(int megabytes) {
+        this.historyMemoryLimit = megabytes;
+        final long bytes = megabytes * 1024L * 1024L;
+        // A lower limit may move steps to the DiskHistory file: that belongs on the worker
+        commandQueue.submit(new CanvasCommand("HistoryMemoryLimit") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.getHistory().setMaxBytes(bytes);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public int HistoryMemoryLimit() {
+        return historyMemoryLimit;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "10")
+    @SimpleProperty(description = "Maximum number of Undo steps kept in the history.")
+    public void MaxUndoSteps(final int steps) {
+        this.maxUndoSteps = Math.max(1, steps);
+        commandQueue.submit(new CanvasCommand("MaxUndoSteps") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.getHistory().setMaxEntries(steps);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public int MaxUndoSteps() {
+        return maxUndoSteps;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, FastFloodFill splits large canvases into tiles and fills them on all CPU cores. "
+    		+ "The result is identical to the sequential fill.")
+    public void ParallelFill(boolean enabled) {
+        this.parallelFill = enabled;
+        submitParallelFill();
+    }
+
+    @SimpleProperty
+    public boolean ParallelFill() {
+        return parallelFill;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "1048576")
+    @SimpleProperty(description = "Minimum canvas size, in pixels (width x height), for ParallelFill to be used. "
+    		+ "Smaller canvases are always filled sequentially.")
+    public void ParallelFillThreshold(int pixels) {
+        this.parallelFillThreshold = Math.max(0, pixels);
+        submitParallelFill();
+    }
+
+    @SimpleProperty
+    public int ParallelFillThreshold() {
+        return parallelFillThreshold;
+    }
+
+    // A running fill reads both settings: they change between fills, on the worker
+    private void submitParallelFill() {
+        final boolean enabled = parallelFill;
+        final int threshold = parallelFillThreshold;
+        commandQueue.submit(new CanvasCommand("ParallelFill") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setParallelFill(enabled, threshold);
+            }
+        });
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, FastFloodFill shows the region growing on the Canvas while it is filled, "
+    		+ "redrawing at most once per ProgressiveFillInterval and raising FillProgress. "
+    		+ "Progressive fills always run sequentially, even when ParallelFill is on.")
+    public void ProgressiveFill(final boolean enabled) {
+        this.progressiveFill = enabled;
+        // The running fill decides once whether it is progressive: the change waits for it on the worker
+        commandQueue.submit(new CanvasCommand("ProgressiveFill") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setProgressiveFill(enabled);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public boolean ProgressiveFill() {
+        return progressiveFill;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "16")
+    @SimpleProperty(description = "Minimum time, in milliseconds, between two Canvas redraws of a progressive fill.")
+    public void ProgressiveFillInterval(int millis) {
+        final int interval = Math.max(1, millis);
+        this.progressiveFillInterval = interval;
+        commandQueue.submit(new CanvasCommand("ProgressiveFillInterval") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setProgressiveFrameMillis(interval);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public int ProgressiveFillInterval() {
+        return progressiveFillInterval;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, ImageSprites, Balls and everything else shown on the Canvas also act as "
+    		+ "borders of the fills, as if the fill read GetPixelColor instead of GetBackgroundPixelColor. The color is still "
+    		+ "painted on the background, under the sprites. Costs one draw of the Canvas per fill. "
+    		+ "Applies to every fill except FloodFillDensity and FloodFillPontSizeDensity; RegionCache, ParallelFill and "
+    		+ "ProgressiveFill are not used while it is on.")
+    public void SpriteBoundaries(final boolean enabled) {
+        this.spriteBoundaries = enabled;
+        // Turning it off returns the composite buffer to the pool, so it must not race a running fill
+        commandQueue.submit(new CanvasCommand("SpriteBoundaries") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setSpriteBoundaries(enabled);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public boolean SpriteBoundaries() {
+        return spriteBoundaries;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, FastFloodFill keeps a map of every region of the Canvas (for example the areas of "
+    		+ "a coloring page) so that filling a region again is a direct copy with no search. The map is built on the first "
+    		+ "fill or with BuildRegionCache. Fills through the map keep it valid; other changes rebuild it when needed. "
+    		+ "Call InvalidateRegionCache after drawing on the Canvas with other blocks.")
+    public void RegionCache(final boolean enabled) {
+        this.regionCache = enabled;
+        // Turning it off frees the map, which a running fill may be reading: only the worker touches it
+        commandQueue.submit(new CanvasCommand("RegionCache") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setRegionCache(enabled);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public boolean RegionCache() {
+        return regionCache;
+    }
+
+    @SimpleProperty(description = "Memory, in bytes, used by the region map of RegionCache.")
+    public long RegionCacheMemory() {
+        return floodFillHandler.getRegionCacheBytes();
+    }
+
+    @SimpleFunction(description = "Builds the region map used by RegionCache from the current Canvas, "
+    		+ "so the next FastFloodFill does not have to build it.")
+    public void BuildRegionCache() {
+    	commandQueue.submit(new CanvasCommand("BuildRegionCache") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.buildRegionCache();
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Marks the region map of RegionCache as outdated. "
+    		+ "Call it after drawing on the Canvas with blocks other than the fills of this extension.")
+    public void InvalidateRegionCache() {
+    	commandQueue.submit(new CanvasCommand("InvalidateRegionCache") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.invalidateRegionCache();
+            }
+        });
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "32")
+    @SimpleProperty(description = "Maximum memory, in megabytes, kept in the pool of reusable pixel buffers and bitmaps "
+    		+ "shared by fills, Undo/Redo and DownloadCanvasImage. 0 disables pooling.")
+    public void BufferPoolLimit(int megabytes) {
+        this.bufferPoolLimit = Math.max(0, megabytes);
+        final long bytes = bufferPoolLimit * 1024L * 1024L;
+        // A lower limit frees pooled buffers: done on the worker, between the operations using them
+        commandQueue.submit(new CanvasCommand("BufferPoolLimit") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.getBufferPool().setMaxBytes(bytes);
+            }
+        });
+    }
+
+    @SimpleProperty
+    public int BufferPoolLimit() {
+        return bufferPoolLimit;
+    }
+
+    @SimpleProperty(description = "Number of buffer requests served from the pool since the app started.")
+    public long BufferPoolHits() {
+        return floodFillHandler.getBufferPool().getHits();
+    }
+
+    @SimpleProperty(description = "Number of buffer requests that had to allocate new memory since the app started.")
+    public long BufferPoolMisses() {
+        return floodFillHandler.getBufferPool().getMisses();
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, only the last MemoryUndoSteps Undo steps are kept in memory; older steps are "
+    		+ "compressed into a file in the app cache and read back when Undo reaches them, so MaxUndoSteps can be "
+    		+ "much larger. The steps are saved whenever the app goes to the background and are restored when the app "
+    		+ "is opened again showing exactly the same drawing; with any other drawing they are discarded.")
+    public void DiskHistory(boolean enabled) {
+        this.diskHistory = enabled;
+        updateDiskHistory();
+    }
+
+    @SimpleProperty
+    public boolean DiskHistory() {
+        return diskHistory;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "3")
+    @SimpleProperty(description = "Number of the most recent Undo steps kept in memory when DiskHistory is on.")
+    public void MemoryUndoSteps(int steps) {
+        this.memoryUndoSteps = Math.max(1, steps);
+        updateDiskHistory();
+    }
+
+    @SimpleProperty
+    public int MemoryUndoSteps() {
+        return memoryUndoSteps;
+    }
+
+    // Queued: opening the file must not race a fill that is recording history
+    private void updateDiskHistory() {
+        final File dir = diskHistory ? form.getCacheDir() : null;
+        final int steps = memoryUndoSteps;
+        commandQueue.submit(new CanvasCommand("DiskHistory") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setDiskHistory(dir, steps);
+            }
+        });
+    }
+
+    @SimpleProperty(description = "Disk space, in bytes, used by the Undo steps stored in the DiskHistory file.")
+    public long HistoryDiskUsed() {
+        return floodFillHandler.getHistory().getSpilledBytes();
+    }
+
+    @SimpleProperty(description = "Memory, in bytes, currently used by the Undo and Redo history.")
+    public long HistoryMemoryUsed() {
+        return floodFillHandler.getHistory().getUsedBytes();
+    }
+
+    @SimpleFunction(description = "Returns the counters of the last finished canvas operation as a dictionary: "
+    		+ "operation, pixelsVisited, pixelsPainted, queuePeak, elapsedNanos, historyBytes, undoDepth and redoDepth. "
+    		+ "Empty until the first operation ends.")
+    public YailDictionary GetStats() {
+        return toDictionary(floodFillHandler.getLastStats());
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "If true, OperationCompleted is raised with the counters of every canvas operation.")
+    public void ReportStats(boolean enabled) {
+        this.reportStats = enabled;
+    }
+
+    @SimpleProperty
+    public boolean ReportStats() {
+        return reportStats;
+    }
+
+    private YailDictionary toDictionary(OperationStats stats) {
+        YailDictionary dictionary = YailDictionary.makeDictionary();
+        if (stats == null) {
+            return dictionary;
+        }
+        dictionary.put("operation", stats.getOperation());
+        dictionary.put("pixelsVisited", stats.getPixelsVisited());
+        dictionary.put("pixelsPainted", stats.getPixelsPainted());
+        dictionary.put("queuePeak", stats.getQueuePeak());
+        dictionary.put("elapsedNanos", stats.getElapsedNanos());
+        dictionary.put("historyBytes", stats.getHistoryBytes());
+        dictionary.put("undoDepth", stats.getUndoDepth());
+        dictionary.put("redoDepth", stats.getRedoDepth());
+        return dictionary;
+    }
+
     @SimpleFunction(description = "Set the Canvas component used for painting.")
-    public void SetCanvas(Canvas canvas) {
+    public void SetCanvas(final Canvas canvas) {
         this.canvasComponent = canvas; // Updates the canvasComponent reference
-        floodFillHandler.setCanvas(canvas);
+        // Queued so it never swaps the canvas under a running fill
+        commandQueue.submit(new CanvasCommand("SetCanvas") {
+            @Override
+            protected void execute() {
+            	floodFillHandler.setCanvas(canvas);
+            }
+        });
     }
     
-    @SimpleFunction(description = "Download the current state of the Canvas as an image.")
+    @SimpleFunction(description = "Download the current state of the Canvas as an image. "
+    		+ "The image is encoded in the background with ExportQuality; ImageDownloaded is triggered when the file is written.")
     public void DownloadCanvasImage(String imageName, @Options(ImageType.class) String imageType, String myDirName) {
         Bitmap.CompressFormat format;
 
@@ -236,37 +1179,153 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
         // Obter a View do Canvas
         android.view.View canvasView = canvasComponent.getView();
 
-        // Criar um Bitmap para armazenar a imagem do Canvas
-        Bitmap canvasBitmap = Bitmap.createBitmap(canvasView.getWidth(), canvasView.getHeight(), Bitmap.Config.ARGB_8888);
+        // Only the snapshot happens on the UI thread: one draw of the view into a reused bitmap
+        final Bitmap canvasBitmap = floodFillHandler.getBufferPool().acquireBitmap(canvasView.getWidth(), canvasView.getHeight());
+        canvasBitmap.eraseColor(Color.TRANSPARENT);
         android.graphics.Canvas bitmapCanvas = new android.graphics.Canvas(canvasBitmap);
         canvasView.draw(bitmapCanvas);
 
+        final Bitmap.CompressFormat exportFormat = format;
+        final String fileName = imageName + "." + imageType;
+        final String dirName = myDirName;
+        final int quality = exportQuality;
+        exportQueue.submit(new CanvasCommand("DownloadCanvasImage") {
+            @Override
+            protected boolean isMeasured() {
+                return false;
+            }
+
+            @Override
+            protected void execute() {
+                try {
+                	writeImage(canvasBitmap, exportFormat, quality, dirName, fileName);
+                } finally {
+                	floodFillHandler.getBufferPool().releaseBitmap(canvasBitmap);
+                }
+            }
+        });
+    }
+
+    // Runs on the export worker: encodes through a buffered stream and notifies the UI thread
+    private void writeImage(Bitmap snapshot, Bitmap.CompressFormat format, int quality, String dirName, String fileName) {
         // Caminho da pasta Pictures no armazenamento externo
         File picturesPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
 
         // Criar um diretório exclusivo para as imagens do Canvas
-        File appImagesPath = new File(picturesPath, myDirName);
+        File appImagesPath = new File(picturesPath, dirName);
         if (!appImagesPath.exists()) {
             appImagesPath.mkdirs();
         }
 
         // Caminho do arquivo de imagem dentro do diretório exclusivo
-        File imageFile = new File(appImagesPath, imageName + "." + imageType);
+        final File imageFile = new File(appImagesPath, fileName);
 
+        OutputStream out = null;
         try {
-            FileOutputStream fos = new FileOutputStream(imageFile);
-            canvasBitmap.compress(format, 100, fos);
-            fos.close();
-
-            // Atualizar a galeria
-            MediaScannerConnection.scanFile(form, new String[] { imageFile.getAbsolutePath() }, null, null);
-
-            // Disparar um evento para notificar que a imagem foi salva
-            ImageDownloaded(imageFile.getAbsolutePath());
+            out = new BufferedOutputStream(new FileOutputStream(imageFile), EXPORT_BUFFER_SIZE);
+            if (!snapshot.compress(format, quality, out)) {
+                throw new IOException("Could not encode " + fileName);
+            }
+            out.flush();
         } catch (IOException e) {
             Log.e(LOG_NAME, "Error in DownloadCanvasImage: " + e.getMessage(), e);
-            ReportError("DownloadCanvasImage - Error: " + e.getMessage());
+            postError("DownloadCanvasImage - Error: " + e.getMessage());
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (flagLog) Log.e(LOG_NAME, "Error closing " + fileName, e);
+                }
+            }
         }
+
+        // Atualizar a galeria
+        MediaScannerConnection.scanFile(form, new String[] { imageFile.getAbsolutePath() }, null, null);
+
+        // Disparar um evento para notificar que a imagem foi salva
+        form.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ImageDownloaded(imageFile.getAbsolutePath());
+            }
+        });
+    }
+
+
+    @SimpleFunction(description = "Saves the drawing (the raw Canvas pixels) and its Undo/Redo history to a session file, "
+    		+ "so it can be resumed later with LoadSession. A path without a leading / is relative to the app's private files. "
+    		+ "Raises SessionSaved when the file is written.")
+    public void SaveSession(final String path) {
+        final File file = resolveSessionFile(path);
+        final boolean compress = compressSession;
+    	commandQueue.submit(new CanvasCommand("SaveSession") {
+            @Override
+            protected void execute() {
+                try {
+                	floodFillHandler.saveSession(file, compress);
+                } catch (IOException e) {
+                	throw new IllegalStateException(e.getMessage(), e);
+                }
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	SessionSaved(file.getAbsolutePath());
+                    }
+                });
+            }
+        });
+    }
+
+    @SimpleFunction(description = "Restores a drawing and its Undo/Redo history saved with SaveSession. "
+    		+ "The Canvas must have the same size it had when the session was saved. Raises SessionLoaded when done.")
+    public void LoadSession(final String path) {
+        final File file = resolveSessionFile(path);
+    	commandQueue.submit(new CanvasCommand("LoadSession") {
+            @Override
+            protected void execute() {
+                try {
+                	floodFillHandler.loadSession(file);
+                } catch (IOException e) {
+                	throw new IllegalStateException(e.getMessage(), e);
+                }
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                    	SessionLoaded(file.getAbsolutePath());
+                    }
+                });
+            }
+        });
+    }
+
+    private File resolveSessionFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(form.getFilesDir(), path);
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty(description = "If true, SaveSession compresses the session file. Line art and flat colors shrink a lot; "
+    		+ "turning it off makes saving and loading a little faster.")
+    public void CompressSession(boolean enabled) {
+        this.compressSession = enabled;
+    }
+
+    @SimpleProperty
+    public boolean CompressSession() {
+        return compressSession;
+    }
+
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "100")
+    @SimpleProperty(description = "Quality (0-100) used by DownloadCanvasImage for JPEG and WEBP images. PNG ignores it.")
+    public void ExportQuality(int quality) {
+        this.exportQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    @SimpleProperty
+    public int ExportQuality() {
+        return exportQuality;
     }
 
     @SimpleEvent(description = "Triggered when an image is successfully downloaded.")
@@ -274,12 +1333,41 @@ public class ExtendedCanvas extends AndroidNonvisibleComponent {
         EventDispatcher.dispatchEvent(this, "ImageDownloaded", filePath);
     }
 
+
+    @SimpleEvent(description = "Triggered when SaveSession has written the session file.")
+    public void SessionSaved(String filePath) {
+        EventDispatcher.dispatchEvent(this, "SessionSaved", filePath);
+    }
+
+    @SimpleEvent(description = "Triggered when LoadSession has restored the drawing and its history.")
+    public void SessionLoaded(String filePath) {
+        EventDispatcher.dispatchEvent(this, "SessionLoaded", filePath);
+    }
     
     @SimpleEvent(description = "Received a generated image")
     public void SaveCurrentStateReady() {
     	EventDispatcher.dispatchEvent(this, "SaveCurrentStateReady");
     }
     
+    @SimpleEvent(description = "Triggered while a progressive fill is running, at most once per ProgressiveFillInterval. "
+    		+ "Percent reaches 100 when the fill is complete. It is -1 while the size of the region is not known, which is "
+    		+ "the case unless BuildRegionCache has mapped the current drawing.")
+    public void FillProgress(int percent) {
+        EventDispatcher.dispatchEvent(this, "FillProgress", percent);
+    }
+    
+    @SimpleEvent(description = "Triggered after every canvas operation when ReportStats is true, "
+    		+ "with the same counters GetStats returns.")
+    public void OperationCompleted(YailDictionary stats) {
+        EventDispatcher.dispatchEvent(this, "OperationCompleted", stats);
+    }
+    
+    @SimpleEvent(description = "Triggered when a fill was stopped and the Canvas rolled back. Reason is "
+    		+ "\"Cancelled\" (CancelFill), \"TimeLimit\" (FillTimeLimit) or \"PixelLimit\" (FillPixelLimit).")
+    public void FillCancelled(String reason) {
+        EventDispatcher.dispatchEvent(this, "FillCancelled", reason);
+    }
+    
     @SimpleEvent(description = "Report an error with a custom message")
     public void ReportError(String errorMessage) {
         EventDispatcher.dispatchEvent(this, "ReportError", errorMessage);
@@ -0,0 +1,105 @@
+package com.bosonshiggs.extendedcanvas.benchmarks;
+
+import com.bosonshiggs.extendedcanvas.helpers.ColorReplacer;
+import com.bosonshiggs.extendedcanvas.helpers.ParallelFiller;
+import com.bosonshiggs.extendedcanvas.helpers.RegionLabels;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+import com.bosonshiggs.extendedcanvas.helpers.ToleranceFiller;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The fill variants used by FloodFillHandler on the same region.
+// The seed region is first painted COLOR_A, then every call toggles it between
+// COLOR_A and COLOR_B: each invocation repaints exactly the same pixels without
+// copying a fresh canvas in between.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class FillBenchmark {
+    private static final int COLOR_A = 0xFFFF0000;
+    private static final int COLOR_B = 0xFF0000FF;
+
+    @Param({ "256x256", "1024x1024", "2048x2048", "3840x2160" })
+    public String size;
+
+    @Param({ "open", "maze", "spiral", "lineart" })
+    public String shape;
+
+    private int[] pixels;
+    private int width, height, seedX, seedY;
+    private boolean flip;
+
+    private final ScanlineFiller scanline = new ScanlineFiller();
+    private final ParallelFiller parallel = new ParallelFiller();
+    private final ToleranceFiller tolerance = new ToleranceFiller();
+    private final RegionLabels labels = new RegionLabels();
+    private final ColorReplacer replacer = new ColorReplacer();
+
+    @Setup
+    public void setup() {
+        int[] dimensions = Shapes.parseSize(size);
+        width = dimensions[0];
+        height = dimensions[1];
+        pixels = Shapes.create(shape, width, height);
+        int[] seed = Shapes.seed(pixels, width, height);
+        seedX = seed[0];
+        seedY = seed[1];
+        scanline.fill(pixels, width, height, seedX, seedY, COLOR_A);
+        flip = false;
+        tolerance.setTolerance(32);
+        labels.build(pixels, width, height);
+    }
+
+    private int nextColor() {
+        flip = !flip;
+        return flip ? COLOR_B : COLOR_A;
+    }
+
+    @Benchmark
+    public int scanline() {
+        return scanline.fill(pixels, width, height, seedX, seedY, nextColor());
+    }
+
+    @Benchmark
+    public int parallel() {
+        return parallel.fill(pixels, width, height, seedX, seedY, nextColor());
+    }
+
+    @Benchmark
+    public int tolerance() {
+        return tolerance.fill(pixels, width, height, seedX, seedY, nextColor());
+    }
+
+    // Region cache hit: the labels stay valid because no other region uses COLOR_A or COLOR_B
+    @Benchmark
+    public int regionCache() {
+        return labels.fill(pixels, width, height, seedX, seedY, nextColor());
+    }
+
+    // Whole-buffer pass: same pixels as the fills here, since only the seed region has COLOR_A or COLOR_B
+    @Benchmark
+    public int replaceColor() {
+        int oldColor = flip ? COLOR_B : COLOR_A;
+        return replacer.replace(pixels, width, height, oldColor, nextColor(), 0);
+    }
+
+    @Benchmark
+    public void buildRegionCache() {
+        labels.build(pixels, width, height);
+    }
+}
@@ -0,0 +1,123 @@
+package com.bosonshiggs.extendedcanvas.benchmarks;
+
+import com.bosonshiggs.extendedcanvas.helpers.ArraySurface;
+import com.bosonshiggs.extendedcanvas.helpers.DeltaHistory;
+import com.bosonshiggs.extendedcanvas.helpers.HistorySpillFile;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Snapshot/restore of the whole canvas (saveCurrentState) and undo/redo of fill steps,
+// run through the same DeltaHistory/PixelSurface code FloodFillHandler uses on the device.
+// memorySteps > 0 attaches a spill file, as DiskHistory does, keeping that many steps in memory.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class HistoryBenchmark {
+    private static final int STEPS = 8;
+
+    @Param({ "256x256", "1024x1024", "2048x2048", "3840x2160" })
+    public String size;
+
+    @Param({ "open", "maze", "spiral", "lineart" })
+    public String shape;
+
+    @Param({ "0", "2" })
+    public int memorySteps;
+
+    private int width, height;
+    private ArraySurface surface;
+    private int[] scratch;
+    private DeltaHistory history;
+    private DeltaHistory snapshots;
+    private File spillFile;
+    private boolean undo;
+
+    @Setup
+    public void setup() throws IOException {
+        int[] dimensions = Shapes.parseSize(size);
+        width = dimensions[0];
+        height = dimensions[1];
+        surface = new ArraySurface(Shapes.create(shape, width, height), width, height);
+        scratch = new int[width * height];
+        history = new DeltaHistory(Long.MAX_VALUE, STEPS);
+        if (memorySteps > 0) {
+            spillFile = File.createTempFile("history", ".bin");
+            history.setSpill(HistorySpillFile.open(spillFile, width, height, HistorySpillFile.NO_CHECKSUM), memorySteps);
+        }
+
+        // STEPS fills recorded the way FloodFillHandler.publishFill does
+        int[] seed = Shapes.seed(surface.getArray(), width, height);
+        ScanlineFiller filler = new ScanlineFiller();
+        for (int step = 0; step < STEPS; step++) {
+            surface.getPixels(scratch, 0, width, 0, 0, width, height);
+            filler.fill(scratch, width, height, seed[0], seed[1], 0xFF000000 | (step * 0x1F3D5B + 0x102030));
+            int left = filler.getMinX(), top = filler.getMinY();
+            int w = filler.getMaxX() - left + 1, h = filler.getMaxY() - top + 1;
+            int[] previous = new int[w * h];
+            surface.getPixels(previous, 0, w, left, top, w, h);
+            history.record(previous, 0, w, left, top, w, h);
+            surface.setPixels(scratch, 0, width, 0, 0, width, height);
+        }
+        undo = true;
+
+        snapshots = new DeltaHistory(Long.MAX_VALUE, 1);
+        snapshots.record(surface.getArray(), 0, width, 0, 0, width, height);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println("history bytes in memory: " + history.getUsedBytes()
+                + ", on disk: " + history.getSpilledBytes() + ", snapshot bytes: " + snapshots.getUsedBytes());
+        HistorySpillFile spill = history.getSpill();
+        if (spill != null) {
+            history.setSpill(null, 0);
+            spill.close();
+            spillFile.delete();
+        }
+    }
+
+    // Pull the canvas and record it as one undo step
+    @Benchmark
+    public long snapshot() {
+        surface.getPixels(scratch, 0, width, 0, 0, width, height);
+        snapshots.record(scratch, 0, width, 0, 0, width, height);
+        return snapshots.getUsedBytes();
+    }
+
+    // Put the whole canvas back from the snapshot (alternately undo and redo of it)
+    @Benchmark
+    public int[] restore() {
+        boolean back = snapshots.canUndo();
+        return snapshots.apply(surface, scratch, back, 1);
+    }
+
+    // Walks the fill steps down to the oldest and back up, one step per call
+    @Benchmark
+    public int[] undoRedo() {
+        if (undo && !history.canUndo()) {
+            undo = false;
+        } else if (!undo && !history.canRedo()) {
+            undo = true;
+        }
+        return history.apply(surface, scratch, undo, 1);
+    }
+}
@@ -0,0 +1,184 @@
+package com.bosonshiggs.extendedcanvas.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Synthetic canvases for the benchmarks, all deterministic:
+// open    - one white field inside a black frame (the largest possible region)
+// maze    - a perfect maze with 6 px corridors (one long, branching region)
+// spiral  - a square spiral with 5 px corridors (one long region with few branches)
+// lineart - anti-aliased rings and lines on white, like a coloring page
+final class Shapes {
+    static final int WHITE = 0xFFFFFFFF;
+    static final int BLACK = 0xFF000000;
+
+    private Shapes() {
+    }
+
+    static int[] create(String shape, int width, int height) {
+        int[] pixels = new int[width * height];
+        if ("open".equals(shape)) {
+            open(pixels, width, height);
+        } else if ("maze".equals(shape)) {
+            maze(pixels, width, height);
+        } else if ("spiral".equals(shape)) {
+            spiral(pixels, width, height);
+        } else if ("lineart".equals(shape)) {
+            lineArt(pixels, width, height);
+        } else {
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        return pixels;
+    }
+
+    // "WxH"
+    static int[] parseSize(String size) {
+        int separator = size.indexOf('x');
+        return new int[] { Integer.parseInt(size.substring(0, separator)), Integer.parseInt(size.substring(separator + 1)) };
+    }
+
+    // A white pixel as close as possible to the middle row, to seed the fills
+    static int[] seed(int[] pixels, int width, int height) {
+        for (int d = 0; d < height; d++) {
+            int y = height / 2 + ((d & 1) == 0 ? d / 2 : -(d / 2) - 1);
+            if (y < 0 || y >= height) {
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                if (pixels[y * width + x] == WHITE) {
+                    return new int[] { x, y };
+                }
+            }
+        }
+        throw new IllegalStateException("No white pixel");
+    }
+
+    private static void open(int[] pixels, int width, int height) {
+        Arrays.fill(pixels, WHITE);
+        for (int x = 0; x < width; x++) {
+            pixels[x] = BLACK;
+            pixels[(height - 1) * width + x] = BLACK;
+        }
+        for (int y = 0; y < height; y++) {
+            pixels[y * width] = BLACK;
+            pixels[y * width + width - 1] = BLACK;
+        }
+    }
+
+    // Iterative depth-first carving on a grid of 8 px cells (2 px walls)
+    private static void maze(int[] pixels, int width, int height) {
+        final int cell = 8, wall = 2;
+        Arrays.fill(pixels, BLACK);
+        int columns = (width - wall) / cell, rows = (height - wall) / cell;
+        boolean[] visited = new boolean[columns * rows];
+        int[] stack = new int[columns * rows];
+        int depth = 0;
+        Random random = new Random(42);
+        visited[0] = true;
+        stack[depth++] = 0;
+        carve(pixels, width, wall, wall, cell - wall, cell - wall);
+        int[] choices = new int[4];
+        while (depth > 0) {
+            int current = stack[depth - 1];
+            int cx = current % columns, cy = current / columns;
+            int n = 0;
+            if (cx > 0 && !visited[current - 1]) choices[n++] = current - 1;
+            if (cx < columns - 1 && !visited[current + 1]) choices[n++] = current + 1;
+            if (cy > 0 && !visited[current - columns]) choices[n++] = current - columns;
+            if (cy < rows - 1 && !visited[current + columns]) choices[n++] = current + columns;
+            if (n == 0) {
+                depth--;
+                continue;
+            }
+            int next = choices[random.nextInt(n)];
+            int nx = next % columns, ny = next / columns;
+            visited[next] = true;
+            stack[depth++] = next;
+            // The next cell plus the wall between the two cells
+            int left = Math.min(cx, nx) * cell + wall, top = Math.min(cy, ny) * cell + wall;
+            int right = Math.max(cx, nx) * cell + cell, bottom = Math.max(cy, ny) * cell + cell;
+            carve(pixels, width, left, top, right - left, bottom - top);
+        }
+    }
+
+    private static void carve(int[] pixels, int width, int x, int y, int w, int h) {
+        for (int row = y; row < y + h; row++) {
+            Arrays.fill(pixels, row * width + x, row * width + x + w, WHITE);
+        }
+    }
+
+    // A turtle draws the wall turning right; after the outer frame every segment is step shorter
+    // than the previous one along the same axis
+    private static void spiral(int[] pixels, int width, int height) {
+        final int step = 6;
+        Arrays.fill(pixels, WHITE);
+        int x = 0, y = 0, direction = 0;
+        int[] dx = { 1, 0, -1, 0 }, dy = { 0, 1, 0, -1 };
+        int horizontal = width - 1, vertical = height - 1;
+        for (int segment = 0; horizontal > 0 && vertical > 0; segment++) {
+            int length = (direction & 1) == 0 ? horizontal : vertical;
+            for (int i = 0; i < length; i++) {
+                pixels[y * width + x] = BLACK;
+                x += dx[direction];
+                y += dy[direction];
+            }
+            pixels[y * width + x] = BLACK;
+            if (segment < 2) {
+                // The first right and down segments are the outer frame, at full length
+            } else if ((direction & 1) == 0) {
+                vertical -= step;
+            } else {
+                horizontal -= step;
+            }
+            direction = (direction + 1) & 3;
+        }
+    }
+
+    // Gray-level coverage of 1.5 px strokes, darkest stroke wins
+    private static void lineArt(int[] pixels, int width, int height) {
+        Arrays.fill(pixels, WHITE);
+        Random random = new Random(7);
+        int shapes = Math.max(8, width * height / 20000);
+        for (int i = 0; i < shapes; i++) {
+            if (random.nextBoolean()) {
+                float cx = random.nextInt(width), cy = random.nextInt(height);
+                float radius = 8 + random.nextInt(Math.max(9, Math.min(width, height) / 6));
+                int left = Math.max(0, (int) (cx - radius - 2)), right = Math.min(width - 1, (int) (cx + radius + 2));
+                int top = Math.max(0, (int) (cy - radius - 2)), bottom = Math.min(height - 1, (int) (cy + radius + 2));
+                for (int y = top; y <= bottom; y++) {
+                    for (int x = left; x <= right; x++) {
+                        float distance = Math.abs((float) Math.hypot(x - cx, y - cy) - radius);
+                        stroke(pixels, y * width + x, distance);
+                    }
+                }
+            } else {
+                float x0 = random.nextInt(width), y0 = random.nextInt(height);
+                float x1 = random.nextInt(width), y1 = random.nextInt(height);
+                float length = (float) Math.hypot(x1 - x0, y1 - y0);
+                if (length < 1) {
+                    continue;
+                }
+                int left = Math.max(0, (int) Math.min(x0, x1) - 2), right = Math.min(width - 1, (int) Math.max(x0, x1) + 2);
+                int top = Math.max(0, (int) Math.min(y0, y1) - 2), bottom = Math.min(height - 1, (int) Math.max(y0, y1) + 2);
+                for (int y = top; y <= bottom; y++) {
+                    for (int x = left; x <= right; x++) {
+                        float distance = Math.abs((x - x0) * (y1 - y0) - (y - y0) * (x1 - x0)) / length;
+                        stroke(pixels, y * width + x, distance);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void stroke(int[] pixels, int index, float distance) {
+        float coverage = Math.max(0f, Math.min(1f, 1.5f - distance));
+        if (coverage <= 0f) {
+            return;
+        }
+        int gray = Math.round(255 * (1f - coverage));
+        int current = pixels[index] & 0xFF;
+        if (gray < current) {
+            pixels[index] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// PixelSurface over a flat row-major int[] (stride = width)
+public class ArraySurface implements PixelSurface {
+    private final int[] pixels;
+    private final int width, height;
+
+    public ArraySurface(int width, int height) {
+        this(new int[width * height], width, height);
+    }
+
+    public ArraySurface(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Buffer smaller than " + width + "x" + height);
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int[] getArray() {
+        return pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(pixels, (y + row) * width + x, dst, offset + row * stride, w);
+        }
+    }
+
+    @Override
+    public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(src, offset + row * stride, pixels, (y + row) * width + x, w);
+        }
+    }
+}
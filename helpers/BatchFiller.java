@@ -0,0 +1,136 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Runs many fills, given as (x, y, color) triples, on one pixel buffer and reports the union
+// of the painted regions as one bounding box, so the caller can record a single undo entry
+// and update the Canvas once. A seed outside the buffer, or inside a region painted earlier
+// in the same batch, is skipped. Regions are found in boundary and painted into pixels; when
+// both are the same buffer that is an ordinary fill. Plain Java, like ScanlineFiller.
+public class BatchFiller implements RegionFiller {
+    private final ScanlineFiller filler = new ScanlineFiller();
+    private PixelMask covered; // Pixels already painted by earlier seeds of the running batch
+    private FillBudget budget;
+
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private int visitedCount;
+    private int peakQueueSize;
+    private int skippedCount;
+
+    @Override
+    public void setBudget(FillBudget budget) {
+        this.budget = budget;
+        filler.setBudget(budget);
+    }
+
+    // A batch of one seed
+    @Override
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        return fill(pixels, pixels, width, height, new int[] { x, y, newColor });
+    }
+
+    // Returns the number of pixels painted. When the budget stops it, the regions painted
+    // so far stay in pixels (and in boundary) and the bounds do not include the last one.
+    public int fill(final int[] pixels, final int[] boundary, int width, int height, int[] seeds) {
+        resetBounds();
+        if (covered == null || !covered.sameSize(width, height)) {
+            covered = new PixelMask(width, height);
+        } else {
+            covered.clearAll();
+        }
+        final PixelMask mask = covered;
+        final int stride = width;
+        final int[] seedColor = new int[1];
+        ScanlineFiller.SpanListener marker = new ScanlineFiller.SpanListener() {
+            @Override
+            public void onSpan(int row, int x0, int x1) {
+                int start = row * stride;
+                mask.setRange(start + x0, start + x1 + 1);
+                if (boundary != pixels) {
+                    Arrays.fill(pixels, start + x0, start + x1 + 1, seedColor[0]);
+                }
+            }
+        };
+
+        for (int i = 0; i + 2 < seeds.length; i += 3) {
+            int x = seeds[i], y = seeds[i + 1];
+            if (x < 0 || y < 0 || x >= width || y >= height || mask.get(y * width + x)) {
+                skippedCount++;
+                continue;
+            }
+            seedColor[0] = seeds[i + 2];
+            int count = filler.fill(boundary, width, height, x, y, seeds[i + 2], marker);
+            visitedCount += filler.getVisitedCount();
+            peakQueueSize = Math.max(peakQueueSize, filler.getPeakQueueSize());
+            if (budget != null && budget.isStopped()) {
+                break;
+            }
+            if (count == 0) {
+                continue;
+            }
+            filledCount += count;
+            if (filler.getMinX() < minX) minX = filler.getMinX();
+            if (filler.getMinY() < minY) minY = filler.getMinY();
+            if (filler.getMaxX() > maxX) maxX = filler.getMaxX();
+            if (filler.getMaxY() > maxY) maxY = filler.getMaxY();
+        }
+        return filledCount;
+    }
+
+    private void resetBounds() {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+        visitedCount = 0;
+        peakQueueSize = 0;
+        skippedCount = 0;
+    }
+
+    // Seeds that were outside the buffer or already covered
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    @Override
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    @Override
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    @Override
+    public int getPeakQueueSize() {
+        return peakQueueSize;
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxX() {
+        return maxX;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
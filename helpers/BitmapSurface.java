@@ -0,0 +1,37 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import android.graphics.Bitmap;
+
+// PixelSurface over an Android Bitmap, so the history and snapshot code can run
+// unchanged on the device and, through ArraySurface, on a plain JVM
+public class BitmapSurface implements PixelSurface {
+    private final Bitmap bitmap;
+
+    public BitmapSurface(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+        bitmap.getPixels(dst, offset, stride, x, y, w, h);
+    }
+
+    @Override
+    public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        bitmap.setPixels(src, offset, stride, x, y, w, h);
+    }
+}
@@ -0,0 +1,127 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Reusable int[] pixel buffers and ARGB_8888 bitmaps shared by fills, undo and export,
+// so steady-state painting stops allocating multi-megabyte objects. Returned objects
+// are kept only while the pool holds at most maxBytes; beyond that they are dropped
+// (bitmaps recycled). Hits and misses are counted for tuning.
+public class BufferPool {
+    private final TreeMap<Integer, ArrayDeque<int[]>> arrays = new TreeMap<>();
+    private final Map<Long, ArrayDeque<Bitmap>> bitmaps = new HashMap<>();
+    private long maxBytes;
+    private long pooledBytes;
+    private long hits, misses;
+
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns an array of at least minLength ints (content undefined). A pooled array
+    // up to 4x bigger is accepted, so rectangles of varying size can share buffers.
+    public synchronized int[] acquireArray(int minLength) {
+        Map.Entry<Integer, ArrayDeque<int[]>> entry = arrays.ceilingEntry(minLength);
+        if (entry != null && entry.getKey() <= 4L * Math.max(minLength, 1024)) {
+            int[] array = entry.getValue().pollLast();
+            if (entry.getValue().isEmpty()) {
+                arrays.remove(entry.getKey());
+            }
+            pooledBytes -= 4L * array.length;
+            hits++;
+            return array;
+        }
+        misses++;
+        return new int[minLength];
+    }
+
+    public synchronized void releaseArray(int[] array) {
+        if (array == null || pooledBytes + 4L * array.length > maxBytes) {
+            return;
+        }
+        ArrayDeque<int[]> free = arrays.get(array.length);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            arrays.put(array.length, free);
+        }
+        free.addLast(array);
+        pooledBytes += 4L * array.length;
+    }
+
+    // Returns a mutable ARGB_8888 bitmap of exactly width x height (content undefined)
+    public synchronized Bitmap acquireBitmap(int width, int height) {
+        ArrayDeque<Bitmap> free = bitmaps.get(key(width, height));
+        while (free != null && !free.isEmpty()) {
+            Bitmap bitmap = free.pollLast();
+            pooledBytes -= 4L * width * height;
+            if (!bitmap.isRecycled()) {
+                hits++;
+                return bitmap;
+            }
+        }
+        misses++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long bytes = 4L * bitmap.getWidth() * bitmap.getHeight();
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || pooledBytes + bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        long key = key(bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> free = bitmaps.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            bitmaps.put(key, free);
+        }
+        free.addLast(bitmap);
+        pooledBytes += bytes;
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+
+    // Empties the pool, recycling the bitmaps
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> free : bitmaps.values()) {
+            for (Bitmap bitmap : free) {
+                bitmap.recycle();
+            }
+        }
+        bitmaps.clear();
+        arrays.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        if (pooledBytes > this.maxBytes) {
+            clear();
+        }
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
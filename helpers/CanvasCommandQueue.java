@@ -0,0 +1,112 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+// Runs canvas commands one at a time, in order, on a single background worker.
+// Because only this worker touches the FloodFillHandler, its bitmap and history
+// never see concurrent access. A newly submitted command is first offered to the
+// last pending one, which may absorb it (e.g. two queued undos become "undo 2").
+public class CanvasCommandQueue {
+
+    public static abstract class Command implements Runnable {
+        // Returns the command that replaces this pending one and next, or null
+        // if both must run. Returning this drops next as redundant.
+        protected Command coalesce(Command next) {
+            return null;
+        }
+    }
+
+    private final ArrayDeque<Command> pending = new ArrayDeque<>();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ExtendedCanvas-worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean draining;
+    private boolean running;
+    private boolean shutDown;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Command command;
+                synchronized (CanvasCommandQueue.this) {
+                    command = pending.pollFirst();
+                    if (command == null) {
+                        draining = false;
+                        running = false;
+                        return;
+                    }
+                    running = true;
+                }
+                boolean completed = false;
+                try {
+                    command.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // An Error escaped the command: this task ends, so hand the rest to a new one
+                        // (the executor replaces the dead thread) instead of leaving draining stuck
+                        synchronized (CanvasCommandQueue.this) {
+                            running = false;
+                            draining = !pending.isEmpty();
+                            if (draining) {
+                                try {
+                                    worker.execute(this);
+                                } catch (RejectedExecutionException e) {
+                                    draining = false; // Shut down meanwhile
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    public synchronized void submit(Command command) {
+        if (shutDown) {
+            return; // Nothing runs after shutdown()
+        }
+        Command last = pending.peekLast();
+        if (last != null) {
+            Command merged = last.coalesce(command);
+            if (merged != null) {
+                pending.pollLast();
+                pending.addLast(merged);
+                return;
+            }
+        }
+        pending.addLast(command);
+        if (!draining) {
+            draining = true;
+            worker.execute(drainTask);
+        }
+    }
+
+    // Commands waiting plus the one currently running
+    public synchronized int getDepth() {
+        return pending.size() + (running ? 1 : 0);
+    }
+
+    // Drops every command that has not started yet; returns how many were dropped
+    public synchronized int cancelPending() {
+        int dropped = pending.size();
+        pending.clear();
+        return dropped;
+    }
+
+    // Accepts no more commands; those already queued still run, then the worker thread ends
+    public synchronized void shutdown() {
+        shutDown = true;
+        worker.shutdown();
+    }
+}
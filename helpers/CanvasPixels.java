@@ -0,0 +1,144 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import com.google.appinventor.components.runtime.Canvas;
+import com.google.appinventor.components.runtime.Component;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.lang.reflect.Field;
+
+import android.util.Log;
+
+// Bulk access to the background layer of a Kodular/App Inventor Canvas.
+// The CanvasView keeps everything drawn by DrawPoint, DrawCircle, SetBackgroundPixelColor...
+// in a private "bitmap" field; reading and writing that bitmap directly turns a
+// W*H loop of component calls into one getPixels/setPixels. When the field cannot
+// be reached (obfuscated build, different runtime) isBulkAvailable() returns false
+// and callers keep their per-pixel path.
+public class CanvasPixels {
+    private final Canvas canvas;
+    private final android.view.View view;
+    private final BufferPool bufferPool;
+    private Field bitmapField;
+    
+    private String LOG_NAME = "ExtendedCanvas";
+    private boolean flagLog = false;
+
+    public CanvasPixels(Canvas canvas, BufferPool bufferPool) {
+        this.canvas = canvas;
+        this.view = canvas.getView();
+        this.bufferPool = bufferPool;
+        try {
+            Field field = this.view.getClass().getDeclaredField("bitmap");
+            field.setAccessible(true);
+            if (Bitmap.class.isAssignableFrom(field.getType())) {
+                this.bitmapField = field;
+            }
+        } catch (Exception e) {
+            if (flagLog) Log.w(LOG_NAME, "Canvas backing bitmap not reachable, using per-pixel path", e);
+        }
+    }
+
+    public boolean isBulkAvailable() {
+        return backingBitmap() != null;
+    }
+
+    // The CanvasView recreates its bitmap when resized, so it is looked up on every call
+    private Bitmap backingBitmap() {
+        if (bitmapField == null) {
+            return null;
+        }
+        try {
+            Bitmap bitmap = (Bitmap) bitmapField.get(view);
+            if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+                return null;
+            }
+            return bitmap;
+        } catch (Exception e) {
+            if (flagLog) Log.e(LOG_NAME, "Error reading canvas bitmap", e);
+            return null;
+        }
+    }
+
+    // Reads the background into out (stride = width) with the same colors
+    // GetBackgroundPixelColor would return. Returns false if the bulk path is unavailable
+    // or the backing bitmap is not exactly width x height.
+    public boolean read(int[] out, int width, int height) {
+        Bitmap backing = backingBitmap();
+        if (backing == null || backing.getWidth() != width || backing.getHeight() != height) {
+            return false;
+        }
+        backing.getPixels(out, 0, width, 0, 0, width, height);
+
+        // Untouched pixels are transparent in the drawing layer; resolve them like
+        // GetBackgroundPixelColor does (background image, then background color)
+        String backgroundImage = canvas.BackgroundImage();
+        int[] image = null;
+        if (backgroundImage != null && backgroundImage.length() > 0) {
+            image = readBackgroundImage(width, height);
+            if (image == null) {
+                return false;
+            }
+        }
+        int backgroundColor = canvas.BackgroundColor();
+        int emptyColor = Color.alpha(backgroundColor) != 0 ? backgroundColor : Component.COLOR_NONE;
+        int size = width * height;
+        for (int i = 0; i < size; i++) {
+            if (out[i] == Color.TRANSPARENT) {
+                out[i] = image != null ? image[i] : emptyColor;
+            }
+        }
+        if (image != null) {
+            bufferPool.releaseArray(image);
+        }
+        return true;
+    }
+
+    // The background image stretched to width x height, drawn once into a pooled bitmap and
+    // read back with one getPixels. Scaled without filtering, like GetBackgroundPixelColor.
+    // The caller releases the returned array to the pool; null if there is no drawable.
+    private int[] readBackgroundImage(int width, int height) {
+        Drawable background = view.getBackground();
+        if (background == null) {
+            return null;
+        }
+        Bitmap scaled = bufferPool.acquireBitmap(width, height);
+        int[] image = bufferPool.acquireArray(width * height);
+        try {
+            scaled.eraseColor(Color.TRANSPARENT);
+            android.graphics.Canvas target = new android.graphics.Canvas(scaled);
+            Bitmap source = background instanceof BitmapDrawable ? ((BitmapDrawable) background).getBitmap() : null;
+            if (source != null) {
+                target.drawBitmap(source, null, new Rect(0, 0, width, height), null);
+            } else {
+                background.setBounds(0, 0, width, height);
+                background.draw(target);
+            }
+            scaled.getPixels(image, 0, width, 0, 0, width, height);
+        } finally {
+            bufferPool.releaseBitmap(scaled);
+        }
+        return image;
+    }
+
+    // Writes the rectangle (x, y, w, h) of src (stride = width) to the background
+    // and invalidates only that rectangle. Returns false if the bulk path is unavailable.
+    public boolean write(int[] src, int width, int x, int y, int w, int h) {
+        Bitmap backing = backingBitmap();
+        if (backing == null || w <= 0 || h <= 0) {
+            return false;
+        }
+        w = Math.min(w, backing.getWidth() - x);
+        h = Math.min(h, backing.getHeight() - y);
+        if (w <= 0 || h <= 0) {
+            return true;
+        }
+        backing.setPixels(src, y * width + x, width, x, y, w, h);
+        view.postInvalidate(x, y, x + w, y + h);
+        return true;
+    }
+}
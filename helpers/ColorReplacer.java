@@ -0,0 +1,160 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Global, non-contiguous color replace: every pixel within tolerance of oldColor becomes
+// newColor, connected or not. The per-pixel work is a branch-free select inside a plain
+// loop over a range of the buffer, a shape the JIT can unroll and vectorize. Buffers of
+// at least parallelThreshold pixels are cut into bands of rows replaced concurrently.
+// Plain Java, like the fillers.
+public class ColorReplacer {
+    private ForkJoinPool pool;
+    private int parallelThreshold = 1024 * 1024;
+
+    private int minY, maxY; // Rows with at least one match, inclusive. Empty when minY > maxY.
+    private int replacedCount;
+
+    // Runs the bands on pool, which stays owned by the caller; without one the common pool is used
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private ForkJoinPool pool() {
+        return pool != null ? pool : ForkJoinPool.commonPool();
+    }
+
+    public void setParallelThreshold(int pixels) {
+        this.parallelThreshold = Math.max(1, pixels);
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    // Replaces in place; returns the number of pixels that changed (a match that already
+    // has newColor is left out, and so are its rows)
+    public int replace(int[] pixels, int width, int height, int oldColor, int newColor, int tolerance) {
+        tolerance = Math.max(0, Math.min(255, tolerance));
+        if (tolerance == 0 && oldColor == newColor) {
+            return collect(Collections.<Band>emptyList()); // Nothing can change
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threads < 2 || width * height < parallelThreshold || height < 2) {
+            Band band = new Band(pixels, width, 0, height, oldColor, newColor, tolerance);
+            band.call();
+            return collect(Collections.singletonList(band));
+        }
+
+        int rowsPerBand = (height + threads - 1) / threads;
+        List<Band> bands = new ArrayList<>(threads);
+        for (int top = 0; top < height; top += rowsPerBand) {
+            bands.add(new Band(pixels, width, top, Math.min(height, top + rowsPerBand), oldColor, newColor, tolerance));
+        }
+        try {
+            for (Future<Void> future : pool().invokeAll(bands)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Color replace interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Color replace failed", e.getCause());
+        }
+        return collect(bands);
+    }
+
+    private int collect(List<Band> bands) {
+        minY = Integer.MAX_VALUE;
+        maxY = Integer.MIN_VALUE;
+        replacedCount = 0;
+        for (Band band : bands) {
+            replacedCount += band.count;
+            minY = Math.min(minY, band.firstRow);
+            maxY = Math.max(maxY, band.lastRow);
+        }
+        return replacedCount;
+    }
+
+    // Rows [top, bottom) of the buffer
+    private static final class Band implements Callable<Void> {
+        final int[] pixels;
+        final int width, top, bottom, oldColor, newColor, tolerance;
+        int count;
+        int firstRow = Integer.MAX_VALUE, lastRow = Integer.MIN_VALUE;
+
+        Band(int[] pixels, int width, int top, int bottom, int oldColor, int newColor, int tolerance) {
+            this.pixels = pixels;
+            this.width = width;
+            this.top = top;
+            this.bottom = bottom;
+            this.oldColor = oldColor;
+            this.newColor = newColor;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public Void call() {
+            for (int row = top; row < bottom; row++) {
+                int start = row * width;
+                int changed = tolerance == 0
+                        ? replaceExact(pixels, start, start + width, oldColor, newColor)
+                        : replaceNear(pixels, start, start + width, oldColor, newColor, tolerance);
+                if (changed > 0) {
+                    count += changed;
+                    firstRow = Math.min(firstRow, row);
+                    lastRow = row;
+                }
+            }
+            return null;
+        }
+    }
+
+    // match is -1 (all bits) for a pixel to replace, 0 otherwise; the pixel is then
+    // p ^ ((p ^ newColor) & match). It is counted only if it was not newColor already.
+    static int replaceExact(int[] pixels, int from, int to, int oldColor, int newColor) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int p = pixels[i];
+            int diff = p ^ oldColor;
+            int match = ~((diff | -diff) >> 31);
+            int change = (p ^ newColor) & match;
+            pixels[i] = p ^ change;
+            count += (change | -change) >>> 31;
+        }
+        return count;
+    }
+
+    static int replaceNear(int[] pixels, int from, int to, int oldColor, int newColor, int tolerance) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int p = pixels[i];
+            int match = ~((tolerance - ToleranceFiller.channelDistance(p, oldColor)) >> 31);
+            int change = (p ^ newColor) & match;
+            pixels[i] = p ^ change;
+            count += (change | -change) >>> 31;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return replacedCount == 0;
+    }
+
+    public int getReplacedCount() {
+        return replacedCount;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+}
@@ -0,0 +1,357 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Undo/redo history that keeps, per operation, only the rectangle it touched and
+// the pixels that rectangle held before. Pixels are run-length encoded as
+// (count, color) pairs, which is compact for the flat colors of fills and line art.
+// The oldest entries are evicted to stay within maxEntries and maxBytes. maxBytes is soft
+// for a single step: the newest entry is always kept, even when it alone is larger.
+// With a spill file attached, only the newest memoryEntries undo steps stay in memory;
+// older ones are moved to disk and paged back one at a time as undo reaches them.
+// Plain Java: works on flat ARGB buffers (row-major) and knows nothing about Android.
+// Public methods are synchronized so limits and counters can be read from the UI thread.
+public class DeltaHistory {
+
+    public static class Entry {
+        final int x, y, w, h;
+        final int[] data;     // RLE pairs, or raw pixels when raw == true
+        final boolean raw;
+
+        Entry(int x, int y, int w, int h, int[] data, boolean raw) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.data = data;
+            this.raw = raw;
+        }
+
+        public int getX() { return x; }
+        public int getY() { return y; }
+        public int getWidth() { return w; }
+        public int getHeight() { return h; }
+
+        public long byteSize() {
+            return 32L + 4L * data.length;
+        }
+    }
+
+    private final ArrayDeque<Entry> undoEntries = new ArrayDeque<>();
+    private final ArrayDeque<Entry> redoEntries = new ArrayDeque<>();
+    private long maxBytes;
+    private int maxEntries;
+    private long usedBytes;
+    private long allocatedBytes; // Every entry ever created, including ones already evicted
+    private HistorySpillFile spill;
+    private int memoryEntries = Integer.MAX_VALUE;
+
+    public DeltaHistory(long maxBytes, int maxEntries) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+    }
+
+    // Records the canvas rectangle (x, y, w, h) as it is BEFORE an operation, so that
+    // undo can put it back. Pixel (x, y) is src[offset], rows are stride apart.
+    // Clears the redo history.
+    public synchronized void record(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        clearEntries(redoEntries);
+        push(undoEntries, encode(src, offset, stride, x, y, w, h));
+        trim();
+    }
+
+    // Keeps the newest memoryEntries undo steps in memory and moves older ones to spill.
+    // Pass null to keep everything in memory; steps left in a detached file are not read back.
+    public synchronized void setSpill(HistorySpillFile spill, int memoryEntries) {
+        this.spill = spill;
+        this.memoryEntries = spill == null ? Integer.MAX_VALUE : Math.max(1, memoryEntries);
+        trim();
+    }
+
+    public synchronized HistorySpillFile getSpill() {
+        return spill;
+    }
+
+    // Moves every undo step to the spill file, e.g. before the app can be killed
+    public synchronized void spillAll() {
+        while (spill != null && !undoEntries.isEmpty()) {
+            spillOldest();
+        }
+    }
+
+    public synchronized boolean canUndo() {
+        return !undoEntries.isEmpty() || getSpilledDepth() > 0;
+    }
+
+    public synchronized boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    // Rectangle the next undo/redo will touch, or null
+    public synchronized Entry peekUndo() {
+        pageIn();
+        return undoEntries.peekLast();
+    }
+
+    public synchronized Entry peekRedo() {
+        return redoEntries.peekLast();
+    }
+
+    // Restores the last recorded rectangle into pixels (stride = width).
+    // The pixels being replaced become the redo entry. Returns the applied entry or null.
+    public synchronized Entry undo(int[] pixels, int width) {
+        pageIn();
+        return swap(undoEntries, redoEntries, pixels, width);
+    }
+
+    public synchronized Entry redo(int[] pixels, int width) {
+        return swap(redoEntries, undoEntries, pixels, width);
+    }
+
+    // Undoes (or redoes) up to steps entries directly on surface, patching only their rectangles.
+    // pixels is scratch space with stride = surface width. Returns the union of the touched
+    // rectangles as {left, top, right, bottom} (right and bottom exclusive), or null if there was nothing to do.
+    public synchronized int[] apply(PixelSurface surface, int[] pixels, boolean undo, int steps) {
+        int width = surface.getWidth();
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = -1, bottom = -1;
+        for (int step = 0; step < steps; step++) {
+            Entry entry = undo ? peekUndo() : peekRedo();
+            if (entry == null) {
+                break;
+            }
+            int offset = entry.y * width + entry.x;
+            surface.getPixels(pixels, offset, width, entry.x, entry.y, entry.w, entry.h);
+            if (undo) {
+                undo(pixels, width);
+            } else {
+                redo(pixels, width);
+            }
+            surface.setPixels(pixels, offset, width, entry.x, entry.y, entry.w, entry.h);
+            left = Math.min(left, entry.x);
+            top = Math.min(top, entry.y);
+            right = Math.max(right, entry.x + entry.w);
+            bottom = Math.max(bottom, entry.y + entry.h);
+        }
+        return right < 0 ? null : new int[] { left, top, right, bottom };
+    }
+
+    private Entry swap(ArrayDeque<Entry> from, ArrayDeque<Entry> to, int[] pixels, int width) {
+        Entry entry = from.pollLast();
+        if (entry == null) {
+            return null;
+        }
+        usedBytes -= entry.byteSize();
+        push(to, encode(pixels, entry.y * width + entry.x, width, entry.x, entry.y, entry.w, entry.h));
+        decode(entry, pixels, width);
+        trim();
+        return entry;
+    }
+
+    // Every undo step, oldest first, including the ones in the spill file (which stay there)
+    public synchronized List<Entry> getUndoEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>(getUndoDepth());
+        for (int i = 0; i < getSpilledDepth(); i++) {
+            entries.add(spill.get(i));
+        }
+        entries.addAll(undoEntries);
+        return entries;
+    }
+
+    // Every redo step, the next one to redo last
+    public synchronized List<Entry> getRedoEntries() {
+        return new ArrayList<>(redoEntries);
+    }
+
+    // Replaces the whole history, e.g. with the steps of a saved session (same order as the getters)
+    public synchronized void setEntries(List<Entry> undo, List<Entry> redo) {
+        clear();
+        for (Entry entry : undo) {
+            push(undoEntries, entry);
+        }
+        for (Entry entry : redo) {
+            push(redoEntries, entry);
+        }
+        trim();
+    }
+
+    public synchronized void clear() {
+        clearEntries(undoEntries);
+        clearEntries(redoEntries);
+        if (spill != null) {
+            spill.clear();
+        }
+    }
+
+    private void push(ArrayDeque<Entry> stack, Entry entry) {
+        stack.addLast(entry);
+        usedBytes += entry.byteSize();
+        allocatedBytes += entry.byteSize();
+    }
+
+    private void clearEntries(ArrayDeque<Entry> stack) {
+        for (Entry entry : stack) {
+            usedBytes -= entry.byteSize();
+        }
+        stack.clear();
+    }
+
+    // Evicts the oldest undo steps first; redo steps only go if that is not enough
+    private void trim() {
+        while (undoEntries.size() + getSpilledDepth() > maxEntries) {
+            if (getSpilledDepth() > 0) {
+                spill.dropOldest();
+            } else {
+                usedBytes -= undoEntries.pollFirst().byteSize();
+            }
+        }
+        while (spill != null && undoEntries.size() > memoryEntries) {
+            spillOldest();
+        }
+        while (spill != null && usedBytes > maxBytes && undoEntries.size() > 1) {
+            spillOldest();
+        }
+        while (usedBytes > maxBytes && undoEntries.size() + redoEntries.size() > 1) {
+            ArrayDeque<Entry> victim = undoEntries.isEmpty() ? redoEntries : undoEntries;
+            usedBytes -= victim.pollFirst().byteSize();
+        }
+    }
+
+    // Spilled steps are always older than the ones in memory, so the oldest in-memory
+    // step goes on top of the spill stack
+    private void spillOldest() {
+        Entry entry = undoEntries.pollFirst();
+        usedBytes -= entry.byteSize();
+        try {
+            spill.push(entry);
+        } catch (IOException e) {
+            detachSpill(); // Disk full or unavailable: keep working from memory only
+        }
+    }
+
+    private void pageIn() {
+        if (!undoEntries.isEmpty() || getSpilledDepth() == 0) {
+            return;
+        }
+        try {
+            push(undoEntries, spill.pop());
+        } catch (IOException e) {
+            detachSpill();
+        }
+    }
+
+    private void detachSpill() {
+        try {
+            spill.close();
+        } catch (IOException ignored) {
+        }
+        spill = null;
+        memoryEntries = Integer.MAX_VALUE;
+    }
+
+    static Entry encode(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        int[] runs = new int[64];
+        int n = 0;
+        int rawSize = w * h;
+        for (int row = 0; row < h; row++) {
+            int index = offset + row * stride;
+            int end = index + w;
+            while (index < end) {
+                int color = src[index];
+                int start = index;
+                while (++index < end && src[index] == color) { }
+                if (n + 2 > runs.length) {
+                    if (n >= rawSize) {
+                        return encodeRaw(src, offset, stride, x, y, w, h); // Noisy region, RLE would not pay off
+                    }
+                    runs = Arrays.copyOf(runs, runs.length << 1);
+                }
+                runs[n++] = index - start;
+                runs[n++] = color;
+            }
+        }
+        if (n >= rawSize) {
+            return encodeRaw(src, offset, stride, x, y, w, h);
+        }
+        return new Entry(x, y, w, h, Arrays.copyOf(runs, n), false);
+    }
+
+    private static Entry encodeRaw(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        int[] data = new int[w * h];
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(src, offset + row * stride, data, row * w, w);
+        }
+        return new Entry(x, y, w, h, data, true);
+    }
+
+    static void decode(Entry entry, int[] pixels, int stride) {
+        if (entry.raw) {
+            for (int row = 0; row < entry.h; row++) {
+                System.arraycopy(entry.data, row * entry.w, pixels, (entry.y + row) * stride + entry.x, entry.w);
+            }
+            return;
+        }
+        // Runs never cross row boundaries, so each run lands inside one row
+        int row = 0;
+        int column = 0;
+        int[] data = entry.data;
+        for (int i = 0; i < data.length; i += 2) {
+            int count = data[i];
+            int start = (entry.y + row) * stride + entry.x + column;
+            Arrays.fill(pixels, start, start + count, data[i + 1]);
+            column += count;
+            if (column == entry.w) {
+                column = 0;
+                row++;
+            }
+        }
+    }
+
+    public synchronized int getUndoDepth() {
+        return undoEntries.size() + getSpilledDepth();
+    }
+
+    public synchronized int getSpilledDepth() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    public synchronized long getSpilledBytes() {
+        return spill == null ? 0 : spill.byteSize();
+    }
+
+    public synchronized int getRedoDepth() {
+        return redoEntries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        trim();
+    }
+}
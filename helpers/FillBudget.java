@@ -0,0 +1,75 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cancellation plus optional time and pixel limits of one fill. The fillers call
+// shouldStop() once per painted span (never per pixel); cancel() may be called from any thread.
+// Once it has stopped, the fill leaves a partial region in its buffer and the caller rolls back.
+// Each fill carries a ticket, taken in queue order when it is queued: cancel() stops every fill
+// whose ticket was taken before the call, so a cancel that arrives before the fill begins is kept.
+public class FillBudget {
+    public static final String CANCELLED = "Cancelled";
+    public static final String TIME_LIMIT = "TimeLimit";
+    public static final String PIXEL_LIMIT = "PixelLimit";
+
+    private static final int CLOCK_INTERVAL = 64; // Spans between two reads of the clock
+
+    private final AtomicLong tickets = new AtomicLong();
+    private volatile long cancelledThrough; // Fills with a ticket up to this one are cancelled
+    private long ticket;
+    private volatile String stopReason;
+    private final AtomicLong painted = new AtomicLong();
+    private long deadline;
+    private long maxPixels;
+    private int spans;
+
+    // Ticket of a fill being queued now
+    public long nextTicket() {
+        return tickets.incrementAndGet();
+    }
+
+    // Starts a new fill with a fresh ticket: only a later cancel() stops it
+    public void begin(long timeLimitMillis, long pixelLimit) {
+        begin(0, timeLimitMillis, pixelLimit);
+    }
+
+    // Starts the fill queued with ticket (0 = none, take one now); 0 limit means no limit
+    public void begin(long ticket, long timeLimitMillis, long pixelLimit) {
+        this.ticket = ticket > 0 ? ticket : nextTicket();
+        stopReason = null;
+        painted.set(0);
+        spans = 0;
+        deadline = timeLimitMillis > 0 ? System.nanoTime() + timeLimitMillis * 1000000L : 0;
+        maxPixels = pixelLimit > 0 ? pixelLimit : Long.MAX_VALUE;
+    }
+
+    // Cancels the running fill and every fill queued before this call
+    public synchronized void cancel() {
+        cancelledThrough = Math.max(cancelledThrough, tickets.get());
+    }
+
+    // Adds a painted span and tells whether the fill must stop now.
+    // The span counter is only approximate when tiles call this concurrently, which is fine for sampling the clock.
+    public boolean shouldStop(int spanPixels) {
+        if (stopReason != null) {
+            return true;
+        }
+        if (ticket <= cancelledThrough) {
+            stopReason = CANCELLED;
+        } else if (painted.addAndGet(spanPixels) > maxPixels) {
+            stopReason = PIXEL_LIMIT;
+        } else if (deadline != 0 && ++spans % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) {
+            stopReason = TIME_LIMIT;
+        }
+        return stopReason != null;
+    }
+
+    public boolean isStopped() {
+        return stopReason != null;
+    }
+
+    // CANCELLED, TIME_LIMIT, PIXEL_LIMIT or null
+    public String getStopReason() {
+        return stopReason;
+    }
+}
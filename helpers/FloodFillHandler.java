@@ -4,87 +4,439 @@ import com.google.appinventor.components.runtime.Canvas;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.graphics.Point;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.Rect;
-import android.graphics.RectF;
-
-import java.util.LinkedList;
-import java.util.Queue;
-
-import java.util.concurrent.ArrayBlockingQueue; 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
-import java.util.Stack;
 
-//import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
+import android.os.Looper;
 import android.util.Log;
 
 public class FloodFillHandler {
+    public interface ProgressListener {
+        // Called on the worker thread; percent is 0-100, or -1 while the region size is unknown
+        void onFillProgress(int percent);
+    }
+
+    public interface CancelListener {
+        // Called on the worker thread after a stopped fill was rolled back; reason is a FillBudget constant
+        void onFillCancelled(String reason);
+    }
+
+    public interface StatsListener {
+        // Called on the worker thread when an operation ends
+        void onOperationCompleted(OperationStats stats);
+    }
+
     private android.view.View view;
     private int width, height;
     Bitmap bitmap;
+    private BitmapSurface surface;
     Canvas canvas;
+    CanvasPixels canvasPixels;
     
-    private Stack<Bitmap> undoStack = new Stack<>();
-    private Stack<Bitmap> redoStack = new Stack<>();
     private static final int MAX_STATES = 10;
+    private static final long MAX_HISTORY_BYTES = 32L * 1024 * 1024;
+    private final DeltaHistory history = new DeltaHistory(MAX_HISTORY_BYTES, MAX_STATES);
+    private static final String HISTORY_FILE = "extendedcanvas-history.bin";
+    private File historyDir; // Disk tier of the history, null when it is kept in memory only
+    private int memoryHistorySteps = 3;
+    
+    private final ScanlineFiller filler = new ScanlineFiller();
+    private final ParallelFiller parallelFiller = new ParallelFiller();
+    private ForkJoinPool fillPool; // Shared by the parallel fills and ReplaceColor; created on first use, shut down by shutdownPool
+    private final ToleranceFiller toleranceFiller = new ToleranceFiller();
+    private boolean parallelFill = false;
+    private int parallelFillThreshold = 1024 * 1024; // Pixels; smaller canvases always fill sequentially
+    private int[] pixels; // Reusable working buffer for the scanline fills (may be longer than width * height)
+    private static final long MAX_POOL_BYTES = 32L * 1024 * 1024;
+    private final BufferPool bufferPool = new BufferPool(MAX_POOL_BYTES);
+    private final Stamper stamper = new Stamper();
+    private final PatternPainter patternPainter = new PatternPainter();
+    private final GradientPainter gradientPainter = new GradientPainter();
+    private final ColorReplacer colorReplacer = new ColorReplacer();
+    private final IntQueue queue = new IntQueue(1024);
+    private PixelMask candidates; // One bit per pixel: still unvisited pixels of the target color
+    private final BatchFiller batchFiller = new BatchFiller();
+    
+    // Sprite-inclusive boundaries: regions are found on a composite of the whole view
+    // (background, drawing layer, sprites) but painted into the background only
+    private boolean spriteBoundaries = false;
+    private int[] compositePixels; // Read buffer of that mode, reused between fills
+    private static final long COMPOSITE_TIMEOUT_MILLIS = 2000;
+    private final SpanPainter spanPainter = new SpanPainter();
+    
+    // Layer mode (any layer added): fills read and write a layer instead of the Canvas,
+    // which only shows the composition of the visible layers
+    private final LayerStack layers = new LayerStack();
+    private String targetLayer = ""; // Empty = top layer
+    private String boundaryLayer = ""; // Empty = the target layer
+    private volatile List<String> layerNames = new ArrayList<>(); // Copy for the UI thread
+    
+    // Selections: bit masks of regions, by handle, reused by later edits without a new traversal
+    public static final int SELECTION_UNION = 0;
+    public static final int SELECTION_INTERSECT = 1;
+    public static final int SELECTION_SUBTRACT = 2;
+    private final HashMap<Integer, PixelMask> selections = new HashMap<>();
+    
+    private final ProgressiveRenderer progressive = new ProgressiveRenderer();
+    private boolean progressiveFill = false;
+    
+    private final RegionLabels regionLabels = new RegionLabels();
+    private final FillBudget budget = new FillBudget();
+    private long fillTicket; // Of the running operation, taken when it was queued
+    private long fillTimeLimit; // Milliseconds, 0 = no limit
+    private long fillPixelLimit; // 0 = no limit
+    private CancelListener cancelListener;
+    private boolean regionCache = false;
+    private ProgressListener progressListener;
+    private int[] progressBuffer; // Buffer the progressive sink publishes from
+    private final ProgressiveRenderer.Sink progressSink = new ProgressiveRenderer.Sink() {
+        @Override
+        public void onFrame(int left, int top, int right, int bottom, int percent) {
+            if (left <= right) {
+                canvasPixels.write(progressBuffer, width, left, top, right - left + 1, bottom - top + 1);
+            }
+            if (progressListener != null) {
+                progressListener.onFillProgress(percent);
+            }
+        }
+    };
+    
+    // Counters of the running operation; plain fields, published as OperationStats at the end
+    private long statsStart, statsHistoryBytes, statsVisited, statsPainted;
+    private int statsQueuePeak;
+    private volatile OperationStats lastStats;
+    private StatsListener statsListener;
     
     private String LOG_NAME = "ExtendedCanvas";
     private boolean flagLog = false;
     
+    public FloodFillHandler() {
+        this.filler.setBudget(this.budget);
+        this.parallelFiller.setBudget(this.budget);
+        this.batchFiller.setBudget(this.budget);
+        this.toleranceFiller.setBudget(this.budget);
+        this.regionLabels.setBudget(this.budget);
+    }
+    
     public void setCanvas(Canvas canvas) {
     	if (flagLog) Log.d(LOG_NAME, "Setting canvas");
+        if (this.canvas != null && this.canvas != canvas) {
+            history.clear(); // The steps belong to the drawing on the previous Canvas
+        }
         this.view = canvas.getView();
         this.width = canvas.Width();
         this.height = canvas.Height();
         this.canvas = canvas;
+        this.canvasPixels = new CanvasPixels(canvas, this.bufferPool);
+        this.regionLabels.invalidate();
+        if (!this.layers.sameSize(this.width, this.height)) {
+            if (!this.layers.isEmpty()) {
+                history.clear(); // Its entries address rows of the old layers
+            }
+            this.layers.reset(this.width, this.height);
+            this.layerNames = this.layers.names();
+            this.selections.clear(); // Masks of the old size
+        }
 
-        //recycleBitmap(this.bitmap);
-        this.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        // The previous canvas' bitmap goes back to the pool instead of being left to the GC
+        this.bufferPool.releaseBitmap(this.bitmap);
+        this.bitmap = this.bufferPool.acquireBitmap(width, height);
+        openHistorySpill();
         if (flagLog) Log.d(LOG_NAME, "Canvas configured!");
     }
     
-    private void recycleBitmap(Bitmap bitmap) {
-        if (this.bitmap != null && !this.bitmap.isRecycled()) {
-            this.bitmap.recycle();
+    private ForkJoinPool fillPool() {
+        if (this.fillPool == null) {
+            this.fillPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
         }
+        return this.fillPool;
     }
-	
+
+    // Stops the threads of the parallel fills and color replaces, e.g. when the component is destroyed.
+    // A later parallel fill starts a new pool.
+    public void shutdownPool() {
+        if (this.fillPool != null) {
+            this.fillPool.shutdown();
+            this.fillPool = null;
+        }
+    }
+
     public void clearMemory() {
         if (flagLog) Log.d(LOG_NAME, "Clearing memory");
-        clearStack(undoStack);
-        clearStack(redoStack);
-        recycleBitmap(this.bitmap); // Só recicle this.bitmap se você for recriá-lo depois
-        this.bitmap = null; // Defina como null após a reciclagem
+        history.clear();
+        regionLabels.release();
+        layers.reset(this.width, this.height);
+        layerNames = layers.names();
+        selections.clear();
+        // Both came from the pool: hand them back so clear() drops them along with the rest
+        bufferPool.releaseBitmap(this.bitmap);
+        this.bitmap = null;
+        bufferPool.releaseArray(this.pixels);
+        this.pixels = null;
+        bufferPool.clear();
         this.canvas.Clear();
     }
 
-    private void clearStack(Stack<Bitmap> stack) {
-    	if (flagLog) Log.d(LOG_NAME, "Clearing stack");
-        while (!stack.isEmpty()) {
-            Bitmap bitmap = stack.pop();
-            if (bitmap != null) {
-                bitmap.recycle(); // Libera os recursos associados ao bitmap
-            }
+    // Keeps only the newest memorySteps undo steps in memory and moves older ones to a file in
+    // dir (dir null turns it off). A file left by a previous run is reopened only for the drawing it was flushed with.
+    public void setDiskHistory(File dir, int memorySteps) {
+        this.historyDir = dir;
+        this.memoryHistorySteps = Math.max(1, memorySteps);
+        openHistorySpill();
+    }
+
+    public boolean isDiskHistory() {
+        return historyDir != null;
+    }
+
+    public int getMemoryHistorySteps() {
+        return memoryHistorySteps;
+    }
+
+    // Moves the in-memory undo steps to the history file, so they outlive the process, and
+    // stamps the file with the drawing they lead to
+    public void flushHistory() {
+        history.spillAll();
+        HistorySpillFile spill = history.getSpill();
+        if (spill != null && this.layers.isEmpty()) {
+            spill.setChecksum(canvasChecksum());
+        }
+    }
+
+    // Flushes and closes the history file; its steps are found again when the app is restarted
+    // with the same drawing on the Canvas
+    public void closeHistory() {
+        flushHistory();
+        closeHistorySpill(false);
+    }
+
+    private void openHistorySpill() {
+        HistorySpillFile spill = history.getSpill();
+        if (spill != null && historyDir != null && spill.getWidth() == this.width && spill.getHeight() == historyHeight()) {
+            history.setSpill(spill, memoryHistorySteps); // Same canvas size: the steps on disk still apply
+            return;
+        }
+        closeHistorySpill(true);
+        if (historyDir == null || this.width <= 0 || this.height <= 0) {
+            return; // Opened by setCanvas once the canvas size is known
+        }
+        try {
+            // Layers are not saved, so their steps never outlive the process
+            long checksum = this.layers.isEmpty() ? canvasChecksum() : HistorySpillFile.NO_CHECKSUM;
+            history.setSpill(HistorySpillFile.open(new File(historyDir, HISTORY_FILE), this.width, historyHeight(), checksum),
+            		memoryHistorySteps);
+            if (flagLog) Log.d(LOG_NAME, "History file opened with " + history.getSpilledDepth() + " steps");
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the history file: " + e.getMessage(), e);
+        }
+    }
+
+    private long canvasChecksum() {
+        copiesCurrentState();
+        int[] pixels = obtainPixelBuffer();
+        this.bitmap.getPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        return HistorySpillFile.checksum(pixels, this.width * this.height);
+    }
+
+    // Steps left in a discarded file would not match the canvas if it were reopened later
+    private void closeHistorySpill(boolean discard) {
+        HistorySpillFile spill = history.getSpill();
+        if (spill == null) {
+            return;
+        }
+        history.setSpill(null, 0);
+        if (discard) {
+            spill.clear();
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            if (flagLog) Log.e(LOG_NAME, "Error closing the history file", e);
+        }
+    }
+
+    public void setParallelFill(boolean enabled, int thresholdPixels) {
+        this.parallelFill = enabled;
+        this.parallelFillThreshold = Math.max(0, thresholdPixels);
+    }
+
+    public boolean isParallelFill() {
+        return parallelFill;
+    }
+
+    public int getParallelFillThreshold() {
+        return parallelFillThreshold;
+    }
+
+    public void setProgressiveFill(boolean enabled) {
+        this.progressiveFill = enabled;
+    }
+
+    public boolean isProgressiveFill() {
+        return progressiveFill;
+    }
+
+    public void setProgressiveFrameMillis(int millis) {
+        this.progressive.setFrameMillis(millis);
+    }
+
+    public int getProgressiveFrameMillis() {
+        return (int) this.progressive.getFrameMillis();
+    }
+
+    public void setRegionCache(boolean enabled) {
+        this.regionCache = enabled;
+        if (!enabled) {
+            this.regionLabels.release();
+        }
+    }
+
+    public boolean isRegionCache() {
+        return regionCache;
+    }
+
+    public long getRegionCacheBytes() {
+        return this.regionLabels.byteSize();
+    }
+
+    public void setSpriteBoundaries(boolean enabled) {
+        this.spriteBoundaries = enabled;
+        if (!enabled) {
+            this.bufferPool.releaseArray(this.compositePixels);
+            this.compositePixels = null;
+        }
+    }
+    
+    public boolean isSpriteBoundaries() {
+        return spriteBoundaries;
+    }
+    
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    public void setFillLimits(long timeLimitMillis, long pixelLimit) {
+        this.fillTimeLimit = Math.max(0, timeLimitMillis);
+        this.fillPixelLimit = Math.max(0, pixelLimit);
+    }
+
+    public long getFillTimeLimit() {
+        return fillTimeLimit;
+    }
+
+    public long getFillPixelLimit() {
+        return fillPixelLimit;
+    }
+
+    public void setCancelListener(CancelListener listener) {
+        this.cancelListener = listener;
+    }
+
+    // Stops the running fill, and fills queued before this call, at their next span; each is then
+    // rolled back. Safe from any thread.
+    public void cancelFill() {
+        this.budget.cancel();
+    }
+
+    // The fill was stopped: this.bitmap still holds the canvas as it was before it, so only
+    // what the progressive or per-pixel paths already showed on the Canvas has to be put back
+    private boolean rollBackIfStopped(int left, int top, int right, int bottom, boolean canvasPainted) {
+        if (!this.budget.isStopped()) {
+            return false;
+        }
+        if (canvasPainted && left <= right && top <= bottom) {
+            int w = right - left + 1, h = bottom - top + 1;
+            int[] pixels = obtainPixelBuffer();
+            surface().getPixels(pixels, top * this.width + left, this.width, left, top, w, h);
+            writeRegionToCanvas(pixels, left, top, w, h);
         }
+        if (flagLog) Log.d(LOG_NAME, "Fill stopped and rolled back: " + this.budget.getStopReason());
+        if (this.cancelListener != null) {
+            this.cancelListener.onFillCancelled(this.budget.getStopReason());
+        }
+        return true;
+    }
+
+    public void setStatsListener(StatsListener listener) {
+        this.statsListener = listener;
+    }
+
+    public OperationStats getLastStats() {
+        return lastStats;
+    }
+
+    // Ticket for a fill command being queued now; pass it to beginOperation when it runs
+    public long nextFillTicket() {
+        return this.budget.nextTicket();
+    }
+    
+    // Brackets one operation; calls must not overlap (they all run on the command worker).
+    // fillTicket comes from nextFillTicket() when the command was queued (0 = none), so that
+    // cancelFill() also stops a fill that was queued before it but had not started yet.
+    public void beginOperation(long fillTicket) {
+        this.fillTicket = fillTicket;
+        statsStart = System.nanoTime();
+        statsHistoryBytes = history.getAllocatedBytes();
+        statsVisited = 0;
+        statsPainted = 0;
+        statsQueuePeak = 0;
+    }
+
+    public OperationStats endOperation(String operation) {
+        OperationStats stats = new OperationStats(operation, statsVisited, statsPainted, statsQueuePeak,
+        		System.nanoTime() - statsStart, history.getAllocatedBytes() - statsHistoryBytes,
+        		history.getUndoDepth(), history.getRedoDepth());
+        lastStats = stats;
+        if (statsListener != null) {
+            statsListener.onOperationCompleted(stats);
+        }
+        return stats;
+    }
+
+    private void countFill(RegionFiller regionFiller) {
+        statsVisited += regionFiller.getVisitedCount();
+        statsPainted += regionFiller.getFilledCount();
+        statsQueuePeak = Math.max(statsQueuePeak, regionFiller.getPeakQueueSize());
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public DeltaHistory getHistory() {
+        return history;
     }
 
 	
     public void copiesCurrentState() {
     	if (this.bitmap == null) {
             // Opção: Recriar o bitmap aqui se for necessário
-            this.bitmap = Bitmap.createBitmap(this.width, this.height, Bitmap.Config.ARGB_8888);
+            this.bitmap = this.bufferPool.acquireBitmap(this.width, this.height);
         }
+    	if (!this.layers.isEmpty()) {
+    		return; // The layers are the state; the Canvas only shows their composition
+    	}
     	
     	if (flagLog) Log.d(LOG_NAME, "Copying current state");
         
     	// Aqui, você está copiando o estado do canvas para this.bitmap
     	try {
+    		int[] pixels = obtainPixelBuffer();
+    		if (this.canvasPixels.read(pixels, this.width, this.height)) {
+    			this.bitmap.setPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+    			if (flagLog) Log.d(LOG_NAME, "Bulk copy completed successfully!");
+    			return;
+    		}
+    		
+    		// Fallback: one component call per pixel
 	        for (int i = 0; i < this.width; i++) {
 	            for (int j = 0; j < this.height; j++) {
 	                int color = this.canvas.GetBackgroundPixelColor(i, j); //To copy sprites GetPixelColor(i, j)
@@ -101,19 +453,44 @@ public class FloodFillHandler {
         if (flagLog) Log.d(LOG_NAME, "Saving current state");
         copiesCurrentState();
         
-        // Cria uma cópia do estado atual do bitmap
-        Bitmap currentState = Bitmap.createBitmap(this.bitmap.getWidth(), this.bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        new android.graphics.Canvas(currentState).drawBitmap(this.bitmap, 0, 0, null);
-        
-        // Empurra o estado atual para a stack de undo
-        undoStack.push(currentState);
-
-        // Limpa a stack de redo
-        clearStack(redoStack);
+        // Registra o canvas inteiro como um passo de undo (comprimido, e a stack de redo é limpa)
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        history.record(pixels, 0, this.width, 0, historyRow(target), this.width, this.height);
 
         if (flagLog) Log.d(LOG_NAME, "Canvas state saved");
     }
 	
+    // Writes the current pixels and the whole undo/redo history to file
+    public void saveSession(File file, boolean compress) throws IOException {
+        if (this.canvas == null) {
+            throw new IllegalStateException("No canvas set");
+        }
+        requireNoLayers();
+        if (flagLog) Log.d(LOG_NAME, "Saving session to " + file);
+        copiesCurrentState();
+        int[] pixels = obtainPixelBuffer();
+        readWorking(pixels);
+        SessionFile.write(file, pixels, this.width, this.height, history, compress);
+    }
+    
+    // Puts back a session saved for a canvas of the same size: one bulk write of the pixels
+    public void loadSession(File file) throws IOException {
+        if (this.canvas == null) {
+            throw new IllegalStateException("No canvas set");
+        }
+        requireNoLayers();
+        if (flagLog) Log.d(LOG_NAME, "Loading session from " + file);
+        if (this.bitmap == null) {
+            this.bitmap = this.bufferPool.acquireBitmap(this.width, this.height);
+        }
+        int[] pixels = obtainPixelBuffer();
+        SessionFile.read(file, pixels, this.width, this.height, history);
+        this.bitmap.setPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        this.regionLabels.invalidate();
+        writeRegionToCanvas(pixels, 0, 0, this.width, this.height);
+    }
+	
     public void copyBitmapToCanvas(Bitmap bitmap) {
     	if (flagLog) Log.d(LOG_NAME, "Copying bitmap to canvas");
         if (bitmap == null || bitmap.isRecycled()) {
@@ -121,6 +498,15 @@ public class FloodFillHandler {
             return;
         }
         
+        // Bulk path: a single write into the Canvas drawing layer
+        int[] pixels = obtainPixelBuffer();
+        bitmap.getPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        if (this.canvasPixels.write(pixels, this.width, 0, 0, this.width, this.height)) {
+        	if (flagLog) Log.d(LOG_NAME, "Bulk bitmap copy successful!");
+        	return;
+        }
+        
+        // Fallback: one component call per pixel
         int oldColor = this.canvas.PaintColor();
         try {
 	        for (int i = 0; i < width; i++) {
@@ -136,50 +522,93 @@ public class FloodFillHandler {
     	}
         
         this.canvas.PaintColor(oldColor);
-        this.view.invalidate();
+        invalidateRegion(0, 0, this.width, this.height);
         if (flagLog) Log.d(LOG_NAME, "The copy loop has ended!");
     }
 	
     public void undo() {
-    	if (flagLog) Log.d(LOG_NAME, "Performing undo");
-        if (!undoStack.isEmpty()) {
-            this.canvas.Clear();
-            Bitmap previousState = undoStack.pop();
-            if (previousState == null || previousState.isRecycled()) {
-                //Log.d(LOG_NAME, "Previous state is null or recycled");
-                return;
-            }
-            // Recicle o bitmap atual após empurrá-lo para redoStack
-            redoStack.push(Bitmap.createBitmap(this.bitmap));
-            recycleBitmap(this.bitmap); 
-            this.bitmap = previousState;
-            copyBitmapToCanvas(previousState);
-        }
-        this.view.invalidate();
+    	undo(1);
     }
 
     public void redo() {
-    	if (flagLog) Log.d(LOG_NAME, "Performing redo");
-        if (!redoStack.isEmpty()) {
-            this.canvas.Clear();
-            
-            Bitmap nextState = redoStack.pop();
-            if (nextState == null || nextState.isRecycled()) {
-            	if (flagLog) Log.d(LOG_NAME, "Next state is null or recycled");
-                return;
+    	redo(1);
+    }
+    
+    public void undo(int steps) {
+    	if (flagLog) Log.d(LOG_NAME, "Performing undo, steps: " + steps);
+    	restoreHistorySteps(true, steps);
+    }
+
+    public void redo(int steps) {
+    	if (flagLog) Log.d(LOG_NAME, "Performing redo, steps: " + steps);
+    	restoreHistorySteps(false, steps);
+    }
+    
+    // Patches only the rectangles stored in the history entries, in the bitmap and then
+    // once on the Canvas for the union of all steps: no clear, no full repaint or redraw
+    private void restoreHistorySteps(boolean undo, int steps) {
+        if (!this.layers.isEmpty()) {
+            restoreLayerSteps(undo, steps);
+            return;
+        }
+        if (this.bitmap == null || this.bitmap.isRecycled()) {
+        	if (flagLog) Log.d(LOG_NAME, "Nothing to restore");
+            return;
+        }
+        
+        int[] pixels = obtainPixelBuffer();
+        int[] dirty = history.apply(surface(), pixels, undo, steps);
+        if (dirty == null) {
+        	if (flagLog) Log.d(LOG_NAME, "History is empty");
+            return;
+        }
+        int left = dirty[0], top = dirty[1], right = dirty[2], bottom = dirty[3];
+        this.regionLabels.invalidate();
+        
+        int w = right - left, h = bottom - top;
+        statsPainted += (long) w * h;
+        surface().getPixels(pixels, top * this.width + left, this.width, left, top, w, h);
+        writeRegionToCanvas(pixels, left, top, w, h);
+    }
+    
+    // True when the seed pixel already has the color, so a fill from it would change nothing
+    public boolean isFilledWith(int x, int y, int color) {
+        if (this.canvas == null || this.spriteBoundaries || x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            return false; // With sprite boundaries the region is decided by what is drawn over the background
+        }
+        if (!this.layers.isEmpty()) {
+            LayerStack.Layer target = targetLayer();
+            LayerStack.Layer boundary = resolveLayer(this.boundaryLayer);
+            return (boundary == null || boundary == target)
+            		&& this.layers.getData()[layerOffset(target) + y * this.width + x] == color;
+        }
+        return this.canvas.GetBackgroundPixelColor(x, y) == color;
+    }
+    
+    // Bulk write of a rectangle of pixels (stride = width) to the Canvas, per pixel as fallback.
+    // Either way only that rectangle of the view is redrawn.
+    private void writeRegionToCanvas(int[] pixels, int x, int y, int w, int h) {
+        if (this.canvasPixels.write(pixels, this.width, x, y, w, h)) {
+            return; // write() invalidates the rectangle itself
+        }
+        int oldColor = this.canvas.PaintColor();
+        for (int j = y; j < y + h; j++) {
+            for (int i = x; i < x + w; i++) {
+                this.canvas.PaintColor(pixels[j * this.width + i]);
+                this.canvas.DrawPoint(i, j);
             }
-            
-            // Recicle o bitmap atual após empurrá-lo para undoStack
-            undoStack.push(Bitmap.createBitmap(this.bitmap));
-            recycleBitmap(this.bitmap);
-            this.bitmap = nextState;
-            copyBitmapToCanvas(nextState);
         }
-        this.view.invalidate();
+        this.canvas.PaintColor(oldColor);
+        invalidateRegion(x, y, w, h);
+    }
+    
+    private void invalidateRegion(int x, int y, int w, int h) {
+        this.view.postInvalidate(x, y, x + w, y + h);
     }
 
-    public void fastFloodFill(int x, int y, int newColor) {
-    	saveCurrentState();
+    public void fastFloodFill(int x, int y, final int newColor) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
     	
     	if (flagLog) Log.d(LOG_NAME, "Starting floodFill"); // Log to start the flood fill
         if (this.canvas == null || this.bitmap == null) {
@@ -189,208 +618,879 @@ public class FloodFillHandler {
         
         if (flagLog) Log.d(LOG_NAME, "Canvas Dimensions: Width = " + this.width + ", Height = " + this.height); // Log for canvas dimensions
    
-        int targetColor = this.bitmap.getPixel(x, y);
-        int oldColor = this.canvas.PaintColor();
+        // Pull the whole bitmap once; the scanline filler works on the flat buffer
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        int[] boundary = boundaryPixels(pixels, target);
         
-        // Cria uma matriz para controlar os pixels visitados
-        boolean[][] visited = new boolean[width][height];
+        // Without bulk access each span is painted through the component as it is found
+        boolean bulk = this.canvasPixels.isBulkAvailable();
+        RegionFiller regionFiller = this.filler;
+        boolean canvasPainted = !bulk;
+        int painted;
+        if (boundary != pixels) {
+        	// Sprite boundaries: the composite is the one filled, its spans are copied to the background
+        	canvasPainted = false;
+        	painted = this.filler.fill(boundary, this.width, this.height, x, y, newColor, this.spanPainter.begin(pixels, newColor));
+        } else if (!this.layers.isEmpty()) {
+        	// A layer lives in memory: no region map, no span-by-span Canvas painting
+        	canvasPainted = false;
+        	if (this.parallelFill && this.width * this.height >= this.parallelFillThreshold) {
+        		this.parallelFiller.setPool(fillPool());
+        		regionFiller = this.parallelFiller;
+        	}
+        	painted = regionFiller.fill(pixels, this.width, this.height, x, y, newColor);
+        } else if (this.regionCache && prepareRegionCache(pixels, x, y)) {
+        	// Static line art: blit the precomputed spans, no traversal
+        	regionFiller = this.regionLabels;
+        	canvasPainted = false;
+        	painted = this.regionLabels.fill(pixels, this.width, this.height, x, y, newColor);
+        } else if (!bulk) {
+        	painted = this.filler.fill(pixels, this.width, this.height, x, y, newColor, new ScanlineFiller.SpanListener() {
+                @Override
+                public void onSpan(int row, int x0, int x1) {
+                    for (int i = x0; i <= x1; i++) {
+                        canvas.SetBackgroundPixelColor(i, row, newColor);
+                    }
+                }
+            });
+        } else if (this.progressiveFill) {
+        	// Publishes the growing region to the Canvas at most once per frame
+        	this.progressBuffer = pixels;
+        	this.progressive.begin(expectedRegionSize(pixels, x, y), this.progressSink);
+        	painted = this.filler.fill(pixels, this.width, this.height, x, y, newColor, this.progressive);
+        	if (!this.budget.isStopped()) {
+        		this.progressive.finish();
+        	}
+        	this.progressBuffer = null;
+        	canvasPainted = true;
+        } else {
+        	if (this.parallelFill && this.width * this.height >= this.parallelFillThreshold) {
+        		this.parallelFiller.setPool(fillPool());
+        		regionFiller = this.parallelFiller;
+        	}
+        	painted = regionFiller.fill(pixels, this.width, this.height, x, y, newColor);
+        }
+        countFill(regionFiller);
+        if (rollBackIfStopped(regionFiller.getMinX(), regionFiller.getMinY(), regionFiller.getMaxX(), regionFiller.getMaxY(), canvasPainted)) {
+        	return;
+        }
         
+        if (painted == 0) {
+        	if (flagLog) Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
+        	return;
+        }
         
-        // Aplica o algoritmo de preenchimento
-        if (flagLog) Log.d(LOG_NAME, "Target color: " + targetColor); // Log for target color
-        if (targetColor != newColor) {
-            Queue<Point> queue = new LinkedList<>();
-            queue.add(new Point(x, y));
-
-            if (flagLog) Log.d(LOG_NAME, "Starting flood fill loop");
-            while (!queue.isEmpty()) {
-                Point p = queue.remove();
-                if (p.x >= 0 && p.x < this.width && p.y >= 0 && p.y < this.height && !visited[p.x][p.y] && this.bitmap.getPixel(p.x, p.y) == targetColor) {
-                	this.bitmap.setPixel(p.x, p.y, newColor);
-                	this.canvas.PaintColor(newColor);
-                	this.canvas.DrawCircle(p.x, p.y, 1, true);;
-                    visited[p.x][p.y] = true; // Marca o pixel como visitado
-
-                    // Adiciona pontos adjacentes à fila
-                    queue.add(new Point(p.x - 1, p.y));
-                    queue.add(new Point(p.x + 1, p.y));
-                    queue.add(new Point(p.x, p.y - 1));
-                    queue.add(new Point(p.x, p.y + 1));
+        commitFill(pixels, target, regionFiller, canvasPainted);
+        if (flagLog) Log.d(LOG_NAME, "Flood fill completed, pixels painted: " + painted);
+    }
+    
+    // (Re)builds the label map when it is missing or no longer matches the seed's region
+    private boolean prepareRegionCache(int[] pixels, int x, int y) {
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            return false;
+        }
+        if (!this.regionLabels.isValidFor(this.width, this.height) || !this.regionLabels.matches(pixels, x, y)) {
+        	if (flagLog) Log.d(LOG_NAME, "Building region cache");
+            this.regionLabels.build(pixels, this.width, this.height);
+            statsVisited += this.width * this.height;
+        }
+        return true;
+    }
+    
+    // Labels the current background now, so the next fills do not pay for it
+    public void buildRegionCache() {
+    	copiesCurrentState();
+        if (this.bitmap == null) {
+            return;
+        }
+        int[] pixels = obtainPixelBuffer();
+        readWorking(pixels);
+        this.regionLabels.build(pixels, this.width, this.height);
+        statsVisited += this.width * this.height;
+        if (flagLog) Log.d(LOG_NAME, "Region cache built, regions: " + this.regionLabels.getRegionCount());
+    }
+    
+    public void invalidateRegionCache() {
+        this.regionLabels.invalidate();
+    }
+    
+    // Size of the seed's region when a valid region cache already knows it, otherwise -1
+    // (progress is then reported without a percentage, instead of scanning the whole canvas)
+    private int expectedRegionSize(int[] pixels, int x, int y) {
+        if (!this.regionLabels.isValidFor(this.width, this.height) || !this.regionLabels.matches(pixels, x, y)) {
+            return -1;
+        }
+        return this.regionLabels.regionSize(x, y);
+    }
+    
+    // Fills the region around the seed plus every connected pixel whose channels are
+    // all within tolerance of the seed color (anti-aliased edges included)
+    public void floodFillTolerance(int x, int y, int newColor, int tolerance) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
+    	
+    	if (flagLog) Log.d(LOG_NAME, "Starting tolerance floodFill, tolerance: " + tolerance);
+        if (this.canvas == null || this.bitmap == null) {
+        	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
+            return;
+        }
+        
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        int[] boundary = boundaryPixels(pixels, target);
+        this.toleranceFiller.setTolerance(tolerance);
+        int painted = boundary == pixels
+        		? this.toleranceFiller.fill(pixels, this.width, this.height, x, y, newColor)
+        		: this.toleranceFiller.trace(boundary, this.width, this.height, x, y, this.spanPainter.begin(pixels, newColor));
+        countFill(this.toleranceFiller);
+        if (rollBackIfStopped(0, 0, -1, -1, false)) {
+        	return;
+        }
+        if (painted == 0) {
+        	if (flagLog) Log.d(LOG_NAME, "Nothing to fill");
+        	return;
+        }
+        
+        commitFill(pixels, target, this.toleranceFiller, false);
+        if (flagLog) Log.d(LOG_NAME, "Tolerance fill completed, pixels painted: " + painted);
+    }
+    
+    // Runs many fills (seeds holds x, y, color triples) on one pixel buffer: a single read of
+    // the bitmap, one undo entry for the union of the regions and one Canvas update.
+    // A seed inside a region painted earlier in the same batch is skipped.
+    public void batchFloodFill(int[] seeds) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
+    	
+    	if (flagLog) Log.d(LOG_NAME, "Starting batch floodFill, seeds: " + seeds.length / 3);
+        if (this.canvas == null || this.bitmap == null) {
+        	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
+            return;
+        }
+        
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        int painted = this.batchFiller.fill(pixels, boundaryPixels(pixels, target), this.width, this.height, seeds);
+        countFill(this.batchFiller);
+        if (rollBackIfStopped(0, 0, -1, -1, false)) {
+        	return;
+        }
+        if (painted == 0) {
+        	if (flagLog) Log.d(LOG_NAME, "Nothing to fill");
+        	return;
+        }
+        
+        commitFill(pixels, target, this.batchFiller.getMinX(), this.batchFiller.getMinY(),
+        		this.batchFiller.getMaxX(), this.batchFiller.getMaxY(), false);
+        if (flagLog) Log.d(LOG_NAME, "Batch fill completed, pixels painted: " + painted + ", seeds skipped: " + this.batchFiller.getSkippedCount());
+    }
+    
+    // Replaces oldColor (within tolerance) everywhere, connected or not, in one pass over the
+    // buffer, split across cores above the parallel fill threshold. One undo step covers the
+    // rows that changed.
+    public void replaceColor(int oldColor, int newColor, int tolerance) {
+    	if (tolerance <= 0 && oldColor == newColor) {
+    		if (flagLog) Log.d(LOG_NAME, "Old color is the same as the new color");
+    		return;
+    	}
+    	copiesCurrentState();
+    	
+    	if (flagLog) Log.d(LOG_NAME, "Replacing color, tolerance: " + tolerance);
+        if (this.canvas == null || this.bitmap == null) {
+        	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
+            return;
+        }
+        
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        this.colorReplacer.setParallelThreshold(this.parallelFillThreshold);
+        if (this.width * this.height >= this.parallelFillThreshold) {
+        	this.colorReplacer.setPool(fillPool());
+        }
+        int replaced = this.colorReplacer.replace(pixels, this.width, this.height, oldColor, newColor, tolerance);
+        statsVisited += this.width * this.height;
+        statsPainted += replaced;
+        if (replaced == 0) {
+        	if (flagLog) Log.d(LOG_NAME, "Nothing to replace");
+        	return;
+        }
+        
+        commitFill(pixels, target, 0, this.colorReplacer.getMinY(), this.width - 1, this.colorReplacer.getMaxY(), false);
+        if (flagLog) Log.d(LOG_NAME, "Color replaced, pixels: " + replaced);
+    }
+    
+    // Records what was under the filled bounding box for undo (this.bitmap still holds it),
+    // then publishes the new pixels to the bitmap and, unless already painted, to the Canvas
+    private void commitFill(int[] pixels, LayerStack.Layer target, RegionFiller regionFiller, boolean canvasPainted) {
+        if (regionFiller != this.regionLabels) {
+            this.regionLabels.invalidate(); // Any other fill may merge or split cached regions
+        }
+        publishFill(pixels, target, regionFiller.getMinX(), regionFiller.getMinY(),
+        		regionFiller.getMaxX(), regionFiller.getMaxY(), canvasPainted);
+    }
+    
+    // Same for an explicit bounding box (inclusive)
+    private void commitFill(int[] pixels, LayerStack.Layer target, int left, int top, int right, int bottom, boolean canvasPainted) {
+        this.regionLabels.invalidate();
+        publishFill(pixels, target, left, top, right, bottom, canvasPainted);
+    }
+    
+    private void publishFill(int[] pixels, LayerStack.Layer target, int left, int top, int right, int bottom, boolean canvasPainted) {
+        int w = right - left + 1, h = bottom - top + 1;
+        if (w <= 0 || h <= 0) {
+            return; // Nothing was painted
+        }
+        PixelSurface working = workingSurface(target);
+        int[] previous = this.bufferPool.acquireArray(w * h);
+        working.getPixels(previous, 0, w, left, top, w, h);
+        history.record(previous, 0, w, left, historyRow(target) + top, w, h);
+        this.bufferPool.releaseArray(previous);
+        
+        // Single bulk write of the changed rectangle; nothing outside it differs from the bitmap
+        working.setPixels(pixels, top * this.width + left, this.width, left, top, w, h);
+        if (!this.layers.isEmpty()) {
+        	this.layers.markDirty(left, top, left + w, top + h);
+        	flushLayers();
+        } else if (canvasPainted) {
+        	invalidateRegion(left, top, w, h); // Painted span by span or frame by frame already
+        } else {
+        	writeRegionToCanvas(pixels, left, top, w, h);
+        }
+    }
+    
+    // Android-free view of the working bitmap for the history code
+    private PixelSurface surface() {
+        if (this.surface == null || this.surface.getBitmap() != this.bitmap) {
+            this.surface = new BitmapSurface(this.bitmap);
+        }
+        return this.surface;
+    }
+    
+    private int[] obtainPixelBuffer() {
+        int size = this.width * this.height;
+        if (this.pixels == null || this.pixels.length < size) {
+            this.bufferPool.releaseArray(this.pixels);
+            this.pixels = this.bufferPool.acquireArray(size);
+        }
+        return this.pixels;
+    }
+    
+    // Buffer the fill boundaries are read from: pixels itself, or the composited view when
+    // sprites count as boundaries (falls back to pixels if the view cannot be drawn)
+    private int[] boundaryPixels(int[] pixels, LayerStack.Layer target) {
+        LayerStack.Layer boundary = resolveLayer(this.boundaryLayer);
+        if (!this.spriteBoundaries && (boundary == null || boundary == target)) {
+            return pixels;
+        }
+        int size = this.width * this.height;
+        if (this.compositePixels == null || this.compositePixels.length < size) {
+            this.bufferPool.releaseArray(this.compositePixels);
+            this.compositePixels = this.bufferPool.acquireArray(size);
+        }
+        if (boundary != null && boundary != target) {
+            // A copy, since the fill paints the region it finds into the buffer it walks
+            System.arraycopy(this.layers.getData(), layerOffset(boundary), this.compositePixels, 0, size);
+            return this.compositePixels;
+        }
+        if (!readComposite(this.compositePixels)) {
+        	if (flagLog) Log.w(LOG_NAME, "Could not composite the Canvas view, using the background only");
+            return pixels;
+        }
+        statsVisited += size;
+        return this.compositePixels;
+    }
+    
+    // One draw of the Canvas view into a pooled bitmap, like DownloadCanvasImage does. Views
+    // may only be drawn on the UI thread, so the worker posts the draw and waits for it.
+    private boolean readComposite(int[] out) {
+        final Bitmap snapshot = this.bufferPool.acquireBitmap(this.width, this.height);
+        final android.view.View target = this.view;
+        final Runnable draw = new Runnable() {
+            @Override
+            public void run() {
+                snapshot.eraseColor(Color.TRANSPARENT);
+                target.draw(new android.graphics.Canvas(snapshot));
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            draw.run();
+        } else {
+            final CountDownLatch drawn = new CountDownLatch(1);
+            target.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        draw.run();
+                    } finally {
+                        drawn.countDown();
+                    }
+                }
+            });
+            try {
+                if (!drawn.await(COMPOSITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return false; // The draw may still run later, so the bitmap is not returned to the pool
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
-            this.canvas.PaintColor(oldColor);
-
-            if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
+        }
+        snapshot.getPixels(out, 0, this.width, 0, 0, this.width, this.height);
+        this.bufferPool.releaseBitmap(snapshot);
+        return true;
+    }
+    
+    // Paints, in a solid color, the spans a fill found on another buffer
+    private final class SpanPainter implements ScanlineFiller.SpanListener {
+        private int[] out;
+        private int color;
+        
+        SpanPainter begin(int[] out, int color) {
+            this.out = out;
+            this.color = color;
+            return this;
+        }
+        
+        @Override
+        public void onSpan(int row, int x0, int x1) {
+            int start = row * width;
+            Arrays.fill(out, start + x0, start + x1 + 1, color);
+        }
+    }
+    
+    public void addLayer(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Layer name is empty");
+        }
+        if (this.canvas == null) {
+            throw new IllegalStateException("No canvas set");
+        }
+        boolean first = this.layers.isEmpty();
+        if (first) {
+            copiesCurrentState(); // The first layer starts with what the Canvas shows now
+        }
+        LayerStack.Layer layer = this.layers.add(name.trim());
+        if (first) {
+            int[] pixels = obtainPixelBuffer();
+            this.bitmap.getPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+            this.layers.surface(layer).setPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        }
+        layersChanged();
+    }
+    
+    public void removeLayer(String name) {
+        if (!this.layers.remove(name)) {
+            throw new IllegalArgumentException("No layer named " + name);
+        }
+        layersChanged();
+        if (this.layers.isEmpty()) {
+            copiesCurrentState(); // Back to the Canvas: it still shows the last composition
         } else {
-        	if (flagLog) Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
+            flushLayers();
+        }
+    }
+    
+    public void setLayerVisible(String name, boolean visible) {
+        this.layers.setVisible(requireLayer(name), visible);
+        flushLayers();
+    }
+    
+    public void setLayerOpacity(String name, int opacity) {
+        this.layers.setOpacity(requireLayer(name), opacity);
+        flushLayers();
+    }
+    
+    public void clearLayer(String name) {
+        LayerStack.Layer layer = requireLayer(name);
+        int[] pixels = obtainPixelBuffer();
+        Arrays.fill(pixels, 0, this.width * this.height, 0);
+        commitLayer(layer, pixels);
+    }
+    
+    // Replaces the layer with what the Canvas background holds now (as one undo step),
+    // e.g. to bring line art drawn with the Canvas blocks into a layer
+    public void copyCanvasToLayer(String name) {
+        LayerStack.Layer layer = requireLayer(name);
+        int[] pixels = obtainPixelBuffer();
+        if (!this.canvasPixels.read(pixels, this.width, this.height)) {
+            for (int j = 0; j < this.height; j++) {
+                for (int i = 0; i < this.width; i++) {
+                    pixels[j * this.width + i] = this.canvas.GetBackgroundPixelColor(i, j);
+                }
+            }
+        }
+        commitLayer(layer, pixels);
+    }
+    
+    private void commitLayer(LayerStack.Layer layer, int[] pixels) {
+        PixelSurface surface = this.layers.surface(layer);
+        int[] previous = this.bufferPool.acquireArray(this.width * this.height);
+        surface.getPixels(previous, 0, this.width, 0, 0, this.width, this.height);
+        history.record(previous, 0, this.width, 0, this.layers.rowOffset(layer), this.width, this.height);
+        this.bufferPool.releaseArray(previous);
+        surface.setPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        this.layers.markAllDirty();
+        flushLayers();
+    }
+    
+    public List<String> getLayerNames() {
+        return layerNames;
+    }
+    
+    public long getLayersBytes() {
+        return this.layers.byteSize();
+    }
+    
+    public void setTargetLayer(String name) {
+        this.targetLayer = name == null ? "" : name.trim();
+    }
+    
+    public String getTargetLayer() {
+        return targetLayer;
+    }
+    
+    public void setBoundaryLayer(String name) {
+        this.boundaryLayer = name == null ? "" : name.trim();
+    }
+    
+    public String getBoundaryLayer() {
+        return boundaryLayer;
+    }
+    
+    // Undo entries address rows of the whole layer stack, so adding or removing a
+    // layer starts a new history (and a new history file of the new height)
+    private void layersChanged() {
+        this.layerNames = this.layers.names();
+        history.clear();
+        this.regionLabels.invalidate();
+        if (this.historyDir != null) {
+            openHistorySpill();
+        }
+    }
+    
+    private int historyHeight() {
+        return this.layers.isEmpty() ? this.height : this.height * this.layers.size();
+    }
+    
+    // First history row of what the fills write: the target layer, or the Canvas itself (null)
+    private int historyRow(LayerStack.Layer target) {
+        return target == null ? 0 : this.layers.rowOffset(target);
+    }
+    
+    private LayerStack.Layer resolveLayer(String name) {
+        if (this.layers.isEmpty() || name.isEmpty()) {
+            return null;
+        }
+        return requireLayer(name);
+    }
+    
+    private LayerStack.Layer requireLayer(String name) {
+        LayerStack.Layer layer = this.layers.get(name);
+        if (layer == null) {
+            throw new IllegalArgumentException("No layer named " + name);
+        }
+        return layer;
+    }
+    
+    private LayerStack.Layer targetLayer() {
+        LayerStack.Layer layer = resolveLayer(this.targetLayer);
+        return layer != null ? layer : this.layers.top();
+    }
+    
+    private int layerOffset(LayerStack.Layer layer) {
+        return this.layers.rowOffset(layer) * this.width;
+    }
+    
+    // What the fills read and write: the target layer, or the working copy of the Canvas (null)
+    private PixelSurface workingSurface(LayerStack.Layer target) {
+        return target == null ? surface() : this.layers.surface(target);
+    }
+    
+    // Resolves the target layer once for the operation (null without layers), reads it into
+    // pixels and returns it, so the rest of the operation works on that same layer
+    private LayerStack.Layer readWorking(int[] pixels) {
+        LayerStack.Layer target = this.layers.isEmpty() ? null : targetLayer();
+        workingSurface(target).getPixels(pixels, 0, this.width, 0, 0, this.width, this.height);
+        return target;
+    }
+    
+    // Composes the layers into the Canvas, only where they changed
+    private void flushLayers() {
+        int[] dirty = this.layers.takeDirty();
+        if (dirty == null || this.canvas == null) {
+            return;
+        }
+        int left = dirty[0], top = dirty[1], w = dirty[2] - left, h = dirty[3] - top;
+        int[] pixels = obtainPixelBuffer();
+        this.layers.compose(pixels, this.width, left, top, w, h);
+        writeRegionToCanvas(pixels, left, top, w, h);
+    }
+    
+    // History entries are applied in place on the layer stack; the rows they touched
+    // are then mapped back to canvas rows and composed
+    private void restoreLayerSteps(boolean undo, int steps) {
+        int[] dirty = history.apply(this.layers.stackSurface(), this.layers.getData(), undo, steps);
+        if (dirty == null) {
+        	if (flagLog) Log.d(LOG_NAME, "History is empty");
+            return;
+        }
+        int left = dirty[0], top = dirty[1], right = dirty[2], bottom = dirty[3];
+        statsPainted += (long) (right - left) * (bottom - top);
+        if (top / this.height == (bottom - 1) / this.height) {
+            int base = top / this.height * this.height;
+            this.layers.markDirty(left, top - base, right, bottom - base);
+        } else {
+            this.layers.markDirty(left, 0, right, this.height); // Steps on several layers
+        }
+        flushLayers();
+    }
+    
+    private void requireNoLayers() {
+        if (!this.layers.isEmpty()) {
+            throw new IllegalStateException("Sessions are not available while the Canvas has layers");
+        }
+    }
+    
+    // Stores, under id, the mask of the region a tolerance fill from (x, y) would cover.
+    // The handle is already in the caller's hands, so an empty mask is stored first:
+    // if the selection fails or is stopped, id is still a valid, empty selection.
+    public void selectRegion(int id, int x, int y, int tolerance) {
+        final PixelMask mask = new PixelMask(this.width, this.height);
+        this.selections.put(id, mask);
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
+        if (this.canvas == null || this.bitmap == null) {
+            throw new IllegalStateException("No canvas set");
+        }
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            throw new IllegalArgumentException("Point outside the Canvas: " + x + ", " + y);
+        }
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        final int stride = this.width;
+        this.toleranceFiller.setTolerance(tolerance);
+        this.toleranceFiller.trace(boundaryPixels(pixels, target), this.width, this.height, x, y, new ScanlineFiller.SpanListener() {
+            @Override
+            public void onSpan(int row, int x0, int x1) {
+                mask.setRange(row * stride + x0, row * stride + x1 + 1);
+            }
+        });
+        statsVisited += this.toleranceFiller.getVisitedCount();
+        statsQueuePeak = Math.max(statsQueuePeak, this.toleranceFiller.getPeakQueueSize());
+        if (rollBackIfStopped(0, 0, -1, -1, false)) {
+        	mask.clearAll(); // A partial region would select an arbitrary part of it
         	return;
         }
-
-        // Desenha o bitmap modificado de volta no Canvas
-        this.view.invalidate();
-        if (flagLog) Log.d(LOG_NAME, "Canvas invalidated after flood fill");
+        if (flagLog) Log.d(LOG_NAME, "Selection " + id + " created, pixels: " + this.toleranceFiller.getFilledCount());
+    }
+    
+    // Stores under id the union, intersection or difference (first minus second) of two selections.
+    // Like selectRegion, id holds an empty selection if either one does not exist.
+    public void combineSelections(int id, int first, int second, int operation) {
+        PixelMask mask = new PixelMask(this.width, this.height);
+        this.selections.put(id, mask);
+        PixelMask a = requireSelection(first);
+        PixelMask b = requireSelection(second);
+        mask.copyFrom(a);
+        if (operation == SELECTION_UNION) {
+            mask.or(b);
+        } else if (operation == SELECTION_INTERSECT) {
+            mask.and(b);
+        } else {
+            mask.andNot(b);
+        }
+    }
+    
+    public void releaseSelection(int id) {
+        this.selections.remove(id);
+    }
+    
+    // Paints every selected pixel with color in one pass over the mask runs: one undo step, one Canvas update
+    public void fillSelection(int id, int color) {
+        PixelMask mask = requireSelection(id);
+        copiesCurrentState();
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = -1, bottom = -1;
+        int start = mask.nextSetBit(0);
+        while (start >= 0) {
+            int end = mask.nextClearBit(start);
+            Arrays.fill(pixels, start, end, color);
+            statsPainted += end - start;
+            int firstRow = start / this.width, lastRow = (end - 1) / this.width;
+            top = Math.min(top, firstRow);
+            bottom = Math.max(bottom, lastRow);
+            if (firstRow == lastRow) {
+                left = Math.min(left, start - firstRow * this.width);
+                right = Math.max(right, end - 1 - lastRow * this.width);
+            } else {
+                left = 0;
+                right = this.width - 1;
+            }
+            start = mask.nextSetBit(end);
+        }
+        statsVisited += this.width * this.height;
+        if (right < 0) {
+        	if (flagLog) Log.d(LOG_NAME, "Selection " + id + " is empty");
+            return;
+        }
+        commitFill(pixels, target, left, top, right, bottom, false);
+    }
+    
+    // The selected pixels inside their bounding box, unselected ones transparent, as a new
+    // bitmap from the buffer pool (the caller releases it), or null for an empty selection
+    public Bitmap copySelection(int id) {
+        PixelMask mask = requireSelection(id);
+        copiesCurrentState();
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = -1, bottom = -1;
+        for (int start = mask.nextSetBit(0); start >= 0; ) {
+            int end = mask.nextClearBit(start);
+            int firstRow = start / this.width, lastRow = (end - 1) / this.width;
+            top = Math.min(top, firstRow);
+            bottom = Math.max(bottom, lastRow);
+            left = Math.min(left, firstRow == lastRow ? start - firstRow * this.width : 0);
+            right = Math.max(right, firstRow == lastRow ? end - 1 - lastRow * this.width : this.width - 1);
+            start = mask.nextSetBit(end);
+        }
+        if (right < 0) {
+            return null;
+        }
+        int w = right - left + 1, h = bottom - top + 1;
+        int[] source = obtainPixelBuffer();
+        readWorking(source);
+        int[] out = this.bufferPool.acquireArray(w * h);
+        Arrays.fill(out, 0, w * h, Color.TRANSPARENT);
+        for (int start = mask.nextSetBit(0); start >= 0; ) {
+            int end = mask.nextClearBit(start);
+            // Split at row ends, since out is only w wide
+            for (int index = start; index < end; ) {
+                int row = index / this.width;
+                int rowEnd = Math.min(end, (row + 1) * this.width);
+                int column = index - row * this.width;
+                System.arraycopy(source, index, out, (row - top) * w + column - left, rowEnd - index);
+                index = rowEnd;
+            }
+            start = mask.nextSetBit(end);
+        }
+        Bitmap bitmap = this.bufferPool.acquireBitmap(w, h);
+        bitmap.setPixels(out, 0, w, 0, 0, w, h);
+        this.bufferPool.releaseArray(out);
+        return bitmap;
+    }
+    
+    private PixelMask requireSelection(int id) {
+        PixelMask mask = this.selections.get(id);
+        if (mask == null) {
+            throw new IllegalArgumentException("No selection " + id);
+        }
+        return mask;
+    }
+    
+    private PixelMask obtainCandidateMask() {
+        if (this.candidates == null || !this.candidates.sameSize(this.width, this.height)) {
+            this.candidates = new PixelMask(this.width, this.height);
+        }
+        return this.candidates;
     }
     
     public void floodFillCircle(int x, int y, int newColor, float radius) {
-    	saveCurrentState();
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
     	
     	if (flagLog) Log.d(LOG_NAME, "Starting floodFill"); // Log to start the flood fill
-        if (this.canvas == null) {
+        if (this.canvas == null || this.bitmap == null) {
         	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
             return;
         }
         
         if (flagLog) Log.d(LOG_NAME, "Canvas Dimensions: Width = " + this.width + ", Height = " + this.height); // Log for canvas dimensions
 
-
-        // Applies flood fill to the bitmap
-        int targetColor = this.bitmap.getPixel(x, y);
-        int oldColor = this.canvas.PaintColor();
-        if (flagLog) Log.d(LOG_NAME, "Target color: " + targetColor); // Log for target color
-        if (targetColor != newColor) {
-            Queue<Point> queue = new LinkedList<>();
-            queue.add(new Point(x, y));
-            
-            if (flagLog) Log.d(LOG_NAME, "Starting flood fill loop");
-            while (!queue.isEmpty()) {
-                Point p = queue.remove();
-                if (p.x >= 0 && p.x < width && p.y >= 0 && p.y < height && this.bitmap.getPixel(p.x, p.y) == targetColor) {
-                    this.bitmap.setPixel(p.x, p.y, newColor);
-                    this.canvas.PaintColor(newColor);
-                    this.canvas.DrawCircle(p.x, p.y, radius, true);
-
-                    // Add points to the queue with the specified density
-                    queue.add(new Point(p.x - 1, p.y));
-                    queue.add(new Point(p.x + 1, p.y));
-                    queue.add(new Point(p.x, p.y - 1));
-                    queue.add(new Point(p.x, p.y + 1));
-                }
-            }
-            this.canvas.PaintColor(oldColor);
-            if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
-        } else {
-            Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        int[] boundary = boundaryPixels(pixels, target);
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height || boundary[y * this.width + x] == newColor) {
+            if (flagLog) Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
             return;
         }
+        
+        // The region is walked on its bitset match mask (which is also the visited set),
+        // so the circles can be stamped straight into pixels without disturbing the walk
+        this.stamper.begin(pixels, this.width, this.height, newColor, radius);
+        this.toleranceFiller.setTolerance(0);
+        this.toleranceFiller.trace(boundary, this.width, this.height, x, y, this.stamper);
+        countFill(this.toleranceFiller);
+        statsPainted += this.stamper.getStampedCount() - this.toleranceFiller.getFilledCount();
+        if (rollBackIfStopped(0, 0, -1, -1, false)) {
+        	return;
+        }
 
-        // Draws the modified bitmap back onto the Canvas
-        this.view.invalidate();
-        if (flagLog) Log.d(LOG_NAME, "Canvas invalidated after flood fill");
+        // One composite of the stamped rectangle onto the Canvas
+        commitFill(pixels, target, this.stamper.getMinX(), this.stamper.getMinY(), this.stamper.getMaxX(), this.stamper.getMaxY(), false);
+        if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
     }
     
-    public void floodFillDensity(int x, int y, int newColor, int density) {
-    	saveCurrentState();
+    // Fills the seed's region with a repeating ARGB tile anchored to the canvas origin: the region
+    // is traced on its match mask and the tile is copied over each span in the same pass
+    public void floodFillTexture(int x, int y, int[] tile, int tileWidth, int tileHeight) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
     	
-    	if (flagLog) Log.d(LOG_NAME, "Starting floodFill"); // Log to start the flood fill
-        if (this.canvas == null) {
+    	if (flagLog) Log.d(LOG_NAME, "Starting pattern fill, tile: " + tileWidth + "x" + tileHeight);
+        if (this.canvas == null || this.bitmap == null) {
         	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
             return;
         }
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            return;
+        }
+
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
         
-        if (flagLog) Log.d(LOG_NAME, "Canvas Dimensions: Width = " + this.width + ", Height = " + this.height); // Log for canvas dimensions
+        this.patternPainter.begin(pixels, this.width, tile, tileWidth, tileHeight);
+        this.toleranceFiller.setTolerance(0);
+        this.toleranceFiller.trace(boundaryPixels(pixels, target), this.width, this.height, x, y, this.patternPainter);
+        countFill(this.toleranceFiller);
+        if (rollBackIfStopped(0, 0, -1, -1, false) || this.patternPainter.isEmpty()) {
+        	return;
+        }
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        this.view.invalidate();
+        // One composite of the patterned rectangle onto the Canvas
+        commitFill(pixels, target, this.patternPainter.getMinX(), this.patternPainter.getMinY(),
+        		this.patternPainter.getMaxX(), this.patternPainter.getMaxY(), false);
+        if (flagLog) Log.d(LOG_NAME, "Pattern fill completed, pixels: " + this.patternPainter.getPaintedCount());
+    }
+    
+    // Shades the seed's region from colorA to colorB: linear along angle (degrees) across the
+    // region, or radial around the seed. The spans are collected first, then shaded in one pass.
+    public void floodFillGradient(int x, int y, int colorA, int colorB, boolean radial, float angle) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
+    	
+    	if (flagLog) Log.d(LOG_NAME, "Starting gradient fill, radial: " + radial);
+        if (this.canvas == null || this.bitmap == null) {
+        	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
+            return;
+        }
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            return;
+        }
 
-        // Applies flood fill to the bitmap
-        int targetColor = this.bitmap.getPixel(x, y);
-        if (flagLog) Log.d(LOG_NAME, "Target color: " + targetColor); // Log for target color
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
         
-        if (targetColor != newColor) {
-            Queue<Point> queue = new LinkedList<>();
-            queue.add(new Point(x, y));
-            
-            if (flagLog) Log.d(LOG_NAME, "Starting flood fill loop");
-            while (!queue.isEmpty()) {
-                Point p = queue.remove();
-                if (p.x >= 0 && p.x < this.width && p.y >= 0 && p.y < this.height && this.bitmap.getPixel(p.x, p.y) == targetColor) {
-                	this.bitmap.setPixel(p.x, p.y, newColor);
-                	this.canvas.SetBackgroundPixelColor(p.x, p.y, newColor);
-
-                    // Add points to the queue with the specified density
-                    if (p.x - density >= 0) queue.add(new Point(p.x - density, p.y));
-                    if (p.x + density < width) queue.add(new Point(p.x + density, p.y));
-                    if (p.y - density >= 0) queue.add(new Point(p.x, p.y - density));
-                    if (p.y + density < height) queue.add(new Point(p.x, p.y + density));
-                }
-            }
-            if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
-        } else {
-        	if (flagLog) Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
+        this.gradientPainter.begin(colorA, colorB);
+        this.toleranceFiller.setTolerance(0);
+        this.toleranceFiller.trace(boundaryPixels(pixels, target), this.width, this.height, x, y, this.gradientPainter);
+        countFill(this.toleranceFiller);
+        if (rollBackIfStopped(0, 0, -1, -1, false) || this.gradientPainter.isEmpty()) {
         	return;
         }
+        if (radial) {
+        	this.gradientPainter.paintRadial(pixels, this.width, x, y);
+        } else {
+        	this.gradientPainter.paintLinear(pixels, this.width, angle);
+        }
 
-        // Draws the modified bitmap back onto the Canvas
-        this.view.invalidate();
-        if (flagLog) Log.d(LOG_NAME, "Canvas invalidated after flood fill");
+        commitFill(pixels, target, this.gradientPainter.getMinX(), this.gradientPainter.getMinY(),
+        		this.gradientPainter.getMaxX(), this.gradientPainter.getMaxY(), false);
+        if (flagLog) Log.d(LOG_NAME, "Gradient fill completed, pixels: " + this.gradientPainter.getPaintedCount());
+    }
+    
+    public void floodFillDensity(int x, int y, int newColor, int density) {
+    	floodFillPattern(x, y, newColor, -1, density);
     }
     
     public void floodFillPontSizeDensity(int x, int y, int newColor, int pointSize, int density) {
-    	saveCurrentState();
+    	floodFillPattern(x, y, newColor, pointSize, density);
+    }
+    
+    // Walks the points `density` pixels apart and stamps a point (pointSize < 0) or a
+    // (2 * pointSize + 1) square on each, all inside the off-screen buffer.
+    // Matching and visited state live in one bitset: a point's bit is cleared when it is
+    // queued, so every point is queued at most once and stamps never hide points from the walk.
+    private void floodFillPattern(int x, int y, int newColor, int pointSize, int density) {
+    	this.budget.begin(this.fillTicket, this.fillTimeLimit, this.fillPixelLimit);
+    	copiesCurrentState();
     	
     	if (flagLog) Log.d(LOG_NAME, "Starting floodFill"); // Log to start the flood fill
-        if (this.canvas == null) {
+        if (this.canvas == null || this.bitmap == null) {
         	if (flagLog) Log.d(LOG_NAME, "Canvas is null");
             return;
         }
         
         if (flagLog) Log.d(LOG_NAME, "Canvas Dimensions: Width = " + this.width + ", Height = " + this.height); // Log for canvas dimensions
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+            return;
+        }
 
-        // Applies flood fill to the bitmap
-        int targetColor = this.bitmap.getPixel(x, y);
+        int[] pixels = obtainPixelBuffer();
+        LayerStack.Layer target = readWorking(pixels);
+        
+        // Applies flood fill to the buffer
+        int targetColor = pixels[y * this.width + x];
         if (flagLog) Log.d(LOG_NAME, "Target color: " + targetColor); // Log for target color
-        if (targetColor != newColor) {
-        	Queue<Point> queue = new LinkedList<>();
-            queue.add(new Point(x, y));
-
-            while (!queue.isEmpty()) {
-                Point p = queue.remove();
-                if (isValidPoint(p.x, p.y, this.width, this.height, targetColor, this.bitmap)) {
-                    paintSquare(p.x, p.y, pointSize, newColor, this.width, this.height, this.bitmap, this.canvas);
-
-                    // Adicionar pontos com a densidade especificada, sem verificar se já foram visitados
-                    addPointWithDensity(queue, p.x - density, p.y, this.width, this.height);
-                    addPointWithDensity(queue, p.x + density, p.y, this.width, this.height);
-                    addPointWithDensity(queue, p.x, p.y - density, this.width, this.height);
-                    addPointWithDensity(queue, p.x, p.y + density, this.width, this.height);
-                }
-            }
-            if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
-        } else {
+        if (targetColor == newColor) {
         	if (flagLog) Log.d(LOG_NAME, "Target color is the same as the new color"); // Log if the target color is the same as the new color
         	return;
         }
-
-        // Draws the modified bitmap back onto the Canvas
-        this.view.invalidate();
-        if (flagLog) Log.d(LOG_NAME, "Canvas invalidated after flood fill");
-    }
-    
-    private void paintSquare(int x, int y, int pointSize, int color, int width, int height, Bitmap bitmap, Canvas canvas) {
-    	if (flagLog) Log.d(LOG_NAME, "Painting square");
-        for (int dx = -pointSize; dx <= pointSize; dx++) {
-            for (int dy = -pointSize; dy <= pointSize; dy++) {
-                int nx = x + dx;
-                int ny = y + dy;
-                if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
-                    bitmap.setPixel(nx, ny, color);
-                    canvas.SetBackgroundPixelColor(nx, ny, color);
-                }
+        
+        PixelMask candidates = obtainCandidateMask();
+        ToleranceFiller.buildMatchMask(pixels, this.width * this.height, targetColor, 0, candidates);
+        
+        // At most one queue slot per lattice point
+        int step = Math.max(1, Math.abs(density));
+        IntQueue queue = this.queue;
+        queue.clear();
+        queue.setMaxSize(((this.width + step - 1) / step) * ((this.height + step - 1) / step));
+        
+        this.stamper.begin(pixels, this.width, this.height, newColor, 0);
+        addPointWithDensity(queue, candidates, x, y);
+        statsVisited += this.width * this.height; // Candidate mask
+        while (!queue.isEmpty()) {
+            int index = queue.poll();
+            statsVisited += 4;
+            int px = index % this.width;
+            int py = index / this.width;
+            if (pointSize < 0) {
+            	this.stamper.point(px, py);
+            } else {
+            	this.stamper.square(px, py, pointSize);
+            }
+            if (this.budget.shouldStop(pointSize < 0 ? 1 : (2 * pointSize + 1) * (2 * pointSize + 1))) {
+            	break;
             }
+
+            // Add points to the queue with the specified density
+            addPointWithDensity(queue, candidates, px - density, py);
+            addPointWithDensity(queue, candidates, px + density, py);
+            addPointWithDensity(queue, candidates, px, py - density);
+            addPointWithDensity(queue, candidates, px, py + density);
         }
-        bitmap.setPixel(x, y, color);
-        canvas.SetBackgroundPixelColor(x, y, color);
+        statsPainted += this.stamper.getStampedCount();
+        statsQueuePeak = Math.max(statsQueuePeak, queue.getPeakSize());
+        if (rollBackIfStopped(0, 0, -1, -1, false)) {
+        	return;
+        }
+        if (flagLog) Log.d(LOG_NAME, "Flood fill completed");
+
+        // One composite of the stamped rectangle onto the Canvas
+        commitFill(pixels, target, this.stamper.getMinX(), this.stamper.getMinY(), this.stamper.getMaxX(), this.stamper.getMaxY(), false);
     }
     
-    private void addPointWithDensity(Queue<Point> queue, int x, int y, int width, int height) {
-    	if (flagLog) Log.d(LOG_NAME, "Adding point with density");
-        if (x >= 0 && x < width && y >= 0 && y < height) {
-            queue.add(new Point(x, y));
+    private void addPointWithDensity(IntQueue queue, PixelMask candidates, int x, int y) {
+        if (x >= 0 && x < this.width && y >= 0 && y < this.height) {
+            int index = y * this.width + x;
+            if (candidates.get(index)) {
+                candidates.clear(index);
+                queue.add(index);
+            }
         }
     }
-
-    private boolean isValidPoint(int x, int y, int width, int height, int targetColor, Bitmap bitmap) {
-    	if (flagLog) Log.d(LOG_NAME, "Checking if point is valid");
-        return x >= 0 && x < width && y >= 0 && y < height && bitmap.getPixel(x, y) == targetColor;
-    }
-}    
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Shades a region with a linear or radial gradient between two colors. As a SpanListener
+// it only records the spans of the region; paint() then shades them in one pass. The colors
+// come from a 1024-entry lookup table and each span is walked in 16.16 fixed point, so there
+// is no float math and no allocation per pixel.
+// Linear: t runs along angle (degrees, 0 = left to right, 90 = top to bottom) across the
+// region's bounding box. Radial: t is the distance to the center over the distance to the
+// farthest corner of the bounding box; the square root comes from a second table indexed by
+// the squared distance, which steps incrementally along the span.
+public class GradientPainter implements ScanlineFiller.SpanListener {
+    private static final int LUT_SIZE = 1024;
+    private static final int SQRT_SIZE = 4096;
+    private static final int ONE = 1 << 16;
+
+    private final int[] lut = new int[LUT_SIZE + 1]; // Last entry repeated: stepping may round up to it
+    private final int[] sqrtIndex = new int[SQRT_SIZE + 1];
+    private int[] spans = new int[3 * 256];
+    private int spanCount;
+    private int minX, minY, maxX, maxY;
+    private int paintedCount;
+
+    public GradientPainter() {
+        for (int i = 0; i <= SQRT_SIZE; i++) {
+            sqrtIndex[i] = (int) Math.round(Math.sqrt(i / (double) SQRT_SIZE) * (LUT_SIZE - 1));
+        }
+    }
+
+    public void begin(int colorA, int colorB) {
+        for (int i = 0; i < LUT_SIZE; i++) {
+            lut[i] = mix(colorA, colorB, i, LUT_SIZE - 1);
+        }
+        lut[LUT_SIZE] = lut[LUT_SIZE - 1];
+        spanCount = 0;
+        paintedCount = 0;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+    }
+
+    // Channel-wise a + (b - a) * num / den, alpha included
+    private static int mix(int a, int b, int num, int den) {
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int ca = (a >>> shift) & 0xFF, cb = (b >>> shift) & 0xFF;
+            color |= (ca + Math.floorDiv((cb - ca) * num + den / 2, den)) << shift;
+        }
+        return color;
+    }
+
+    @Override
+    public void onSpan(int y, int x0, int x1) {
+        if (3 * spanCount + 3 > spans.length) {
+            spans = Arrays.copyOf(spans, spans.length << 1);
+        }
+        spans[3 * spanCount] = y;
+        spans[3 * spanCount + 1] = x0;
+        spans[3 * spanCount + 2] = x1;
+        spanCount++;
+        paintedCount += x1 - x0 + 1;
+        if (x0 < minX) minX = x0;
+        if (x1 > maxX) maxX = x1;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    public void paintLinear(int[] out, int width, float angleDegrees) {
+        if (isEmpty()) {
+            return;
+        }
+        double radians = Math.toRadians(angleDegrees);
+        double cos = Math.cos(radians), sin = Math.sin(radians);
+        // Projection range of the bounding box corners on the gradient direction
+        double low = Math.min(minX * cos, (maxX + 1) * cos) + Math.min(minY * sin, (maxY + 1) * sin);
+        double high = Math.max(minX * cos, (maxX + 1) * cos) + Math.max(minY * sin, (maxY + 1) * sin);
+        double scale = (LUT_SIZE - 1) / Math.max(1e-9, high - low);
+        long step = Math.round(cos * scale * ONE);
+        for (int s = 0; s < spanCount; s++) {
+            int y = spans[3 * s], x0 = spans[3 * s + 1], x1 = spans[3 * s + 2];
+            // Pixel centers; + 0.5 so the fixed-point floor rounds to the nearest entry
+            double start = ((x0 + 0.5) * cos + (y + 0.5) * sin - low) * scale + 0.5;
+            long index = Math.round(Math.max(0, Math.min(LUT_SIZE - 0.5, start)) * ONE);
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                out[row + x] = lut[clamp(index >> 16)];
+                index += step;
+            }
+        }
+    }
+
+    public void paintRadial(int[] out, int width, int centerX, int centerY) {
+        if (isEmpty()) {
+            return;
+        }
+        long farX = Math.max(Math.abs(minX - centerX), Math.abs(maxX - centerX));
+        long farY = Math.max(Math.abs(minY - centerY), Math.abs(maxY - centerY));
+        long maxSquared = Math.max(1, farX * farX + farY * farY);
+        // Squared distance to sqrt table index, in 32.32 fixed point
+        long scale = ((long) SQRT_SIZE << 32) / maxSquared;
+        for (int s = 0; s < spanCount; s++) {
+            int y = spans[3 * s], x0 = spans[3 * s + 1], x1 = spans[3 * s + 2];
+            long dy = y - centerY;
+            long dx = x0 - centerX;
+            long squared = dx * dx + dy * dy;
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                long k = (squared * scale) >>> 32;
+                out[row + x] = lut[sqrtIndex[k > SQRT_SIZE ? SQRT_SIZE : (int) k]];
+                squared += 2 * dx + 1; // (dx + 1)^2 - dx^2
+                dx++;
+            }
+        }
+    }
+
+    private static int clamp(long index) {
+        return index < 0 ? 0 : index > LUT_SIZE ? LUT_SIZE : (int) index;
+    }
+
+    public int getPaintedCount() {
+        return paintedCount;
+    }
+
+    public boolean isEmpty() {
+        return spanCount == 0;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+}
@@ -0,0 +1,328 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Disk tier of DeltaHistory: a stack of deflate-compressed history entries appended to
+// a memory-mapped file. The newest entry sits at the end and is the first paged back.
+// The header keeps the canvas size, the live byte range and a checksum of the drawing
+// the steps belong to. The checksum is written when the file is flushed and reset by any
+// later change, so a file left by a previous run of the app is only reopened for the very
+// drawing it was flushed with; anything else would paste rectangles of another drawing.
+//
+// Layout: header (magic, version, width, height, first offset, end offset, checksum), then
+// records [int length][int x, y, w, h][byte raw][int data length in ints][deflated data].
+public class HistorySpillFile implements Closeable {
+    private static final int MAGIC = 0x45434853; // "ECHS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    public static final long NO_CHECKSUM = 0L;
+    private static final int RECORD_FIELDS = 4 * 4 + 1 + 4;
+    private static final long MIN_CAPACITY = 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private long capacity;
+    private final int width, height;
+    private long first, end;
+
+    // Offsets of the live records, oldest first: offsets[head .. count)
+    private long[] offsets = new long[64];
+    private int head, count;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] raw = new byte[64 * 1024];
+    private byte[] packed = new byte[64 * 1024];
+
+    private HistorySpillFile(File path, int width, int height) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.width = width;
+        this.height = height;
+        this.capacity = Math.max(MIN_CAPACITY, channel.size());
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Reopens the history left in path when it was flushed for a canvas of the same size
+    // whose pixels had this checksum, otherwise starts an empty one. NO_CHECKSUM never matches.
+    public static HistorySpillFile open(File path, int width, int height, long checksum) throws IOException {
+        HistorySpillFile spill = new HistorySpillFile(path, width, height);
+        if (checksum == NO_CHECKSUM || !spill.loadIndex(checksum)) {
+            spill.reset();
+        }
+        return spill;
+    }
+
+    // Fingerprint of a drawing, for setChecksum and open
+    public static long checksum(int[] pixels, int length) {
+        long hash = 0xCBF29CE484222325L; // FNV-1a over whole pixels
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ pixels[i]) * 0x100000001B3L;
+        }
+        return hash == NO_CHECKSUM ? 1L : hash;
+    }
+
+    private boolean loadIndex(long checksum) {
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.getInt(8) != width || map.getInt(12) != height || map.getLong(32) != checksum) {
+            return false;
+        }
+        long storedFirst = map.getLong(16);
+        long storedEnd = map.getLong(24);
+        if (storedFirst < HEADER_SIZE || storedEnd < storedFirst || storedEnd > capacity) {
+            return false;
+        }
+        head = 0;
+        count = 0;
+        long offset = storedFirst;
+        while (offset < storedEnd) {
+            int length = map.getInt((int) offset);
+            if (length < RECORD_FIELDS || offset + 4 + length > storedEnd) {
+                return false;
+            }
+            addOffset(offset);
+            offset += 4 + length;
+        }
+        first = storedFirst;
+        end = storedEnd;
+        return true;
+    }
+
+    private void reset() {
+        head = 0;
+        count = 0;
+        first = HEADER_SIZE;
+        end = HEADER_SIZE;
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, width);
+        map.putInt(12, height);
+        writeRange();
+    }
+
+    // Every change of the range also means the steps no longer end at the flushed drawing
+    private void writeRange() {
+        map.putLong(16, first);
+        map.putLong(24, end);
+        map.putLong(32, NO_CHECKSUM);
+    }
+
+    // Ties the steps now in the file to the drawing with this checksum, until the next change
+    public void setChecksum(long checksum) {
+        map.putLong(32, checksum);
+    }
+
+    public long getChecksum() {
+        return map.getLong(32);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return count - head;
+    }
+
+    public long byteSize() {
+        return end - first;
+    }
+
+    public void push(DeltaHistory.Entry entry) throws IOException {
+        int rawLength = 4 * entry.data.length;
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        ByteBuffer.wrap(raw, 0, rawLength).asIntBuffer().put(entry.data);
+
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int packedLength = 0;
+        while (!deflater.finished()) {
+            if (packedLength == packed.length) {
+                packed = Arrays.copyOf(packed, packed.length << 1);
+            }
+            packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+        }
+
+        int length = RECORD_FIELDS + packedLength;
+        ensureCapacity(end + 4 + length);
+        int position = (int) end;
+        map.putInt(position, length);
+        map.putInt(position + 4, entry.x);
+        map.putInt(position + 8, entry.y);
+        map.putInt(position + 12, entry.w);
+        map.putInt(position + 16, entry.h);
+        map.put(position + 20, (byte) (entry.raw ? 1 : 0));
+        map.putInt(position + 21, entry.data.length);
+        ByteBuffer body = map.duplicate();
+        body.position(position + 4 + RECORD_FIELDS);
+        body.put(packed, 0, packedLength);
+
+        addOffset(end);
+        end += 4 + length;
+        writeRange();
+    }
+
+    // Pages the newest entry back in and removes it from the file
+    public DeltaHistory.Entry pop() throws IOException {
+        if (size() == 0) {
+            return null;
+        }
+        long offset = offsets[--count];
+        DeltaHistory.Entry entry = readRecord(offset);
+        end = offset;
+        if (size() == 0) {
+            reset();
+        } else {
+            writeRange();
+        }
+        return entry;
+    }
+
+    // Reads the entry at index (0 = oldest) without removing it
+    public DeltaHistory.Entry get(int index) throws IOException {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+        }
+        return readRecord(offsets[head + index]);
+    }
+
+    private DeltaHistory.Entry readRecord(long offset) throws IOException {
+        int position = (int) offset;
+        int length = map.getInt(position);
+        int x = map.getInt(position + 4);
+        int y = map.getInt(position + 8);
+        int w = map.getInt(position + 12);
+        int h = map.getInt(position + 16);
+        boolean isRaw = map.get(position + 20) != 0;
+        int ints = map.getInt(position + 21);
+        int packedLength = length - RECORD_FIELDS;
+
+        if (packed.length < packedLength) {
+            packed = new byte[packedLength];
+        }
+        ByteBuffer body = map.duplicate();
+        body.position(position + 4 + RECORD_FIELDS);
+        body.get(packed, 0, packedLength);
+
+        int rawLength = 4 * ints;
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        inflater.reset();
+        inflater.setInput(packed, 0, packedLength);
+        try {
+            int done = 0;
+            while (done < rawLength) {
+                int inflated = inflater.inflate(raw, done, rawLength - done);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated history record");
+                }
+                done += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted history record", e);
+        }
+        int[] data = new int[ints];
+        ByteBuffer.wrap(raw, 0, rawLength).asIntBuffer().get(data);
+        return new DeltaHistory.Entry(x, y, w, h, data, isRaw);
+    }
+
+    // Forgets the oldest entry; its bytes are reclaimed when the live range is compacted
+    public void dropOldest() {
+        if (size() == 0) {
+            return;
+        }
+        head++;
+        if (size() == 0) {
+            reset();
+            return;
+        }
+        first = offsets[head];
+        writeRange();
+    }
+
+    public void clear() {
+        reset();
+    }
+
+    private void addOffset(long offset) {
+        if (count == offsets.length) {
+            if (head > 0) {
+                System.arraycopy(offsets, head, offsets, 0, count - head);
+                count -= head;
+                head = 0;
+            } else {
+                offsets = Arrays.copyOf(offsets, offsets.length << 1);
+            }
+        }
+        offsets[count++] = offset;
+    }
+
+    private void ensureCapacity(long needed) throws IOException {
+        // Dead bytes before the live range are reused before the file grows
+        long dead = first - HEADER_SIZE;
+        if (needed > capacity && dead > 0) {
+            compact();
+            needed -= dead;
+        }
+        if (needed <= capacity) {
+            return;
+        }
+        long grown = capacity;
+        while (grown < needed) {
+            grown <<= 1;
+        }
+        if (grown > Integer.MAX_VALUE) {
+            throw new IOException("History file too large");
+        }
+        capacity = grown;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void compact() {
+        long shift = first - HEADER_SIZE;
+        // The ranges may overlap, so copy forward in chunks rather than with one put
+        ByteBuffer source = map.duplicate();
+        ByteBuffer target = map.duplicate();
+        source.position((int) first);
+        target.position(HEADER_SIZE);
+        while (source.position() < end) {
+            int chunk = (int) Math.min(raw.length, end - source.position());
+            source.get(raw, 0, chunk);
+            target.put(raw, 0, chunk);
+        }
+        for (int i = head; i < count; i++) {
+            offsets[i] -= shift;
+        }
+        first -= shift;
+        end -= shift;
+        writeRange();
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        deflater.end();
+        inflater.end();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,75 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// Growable FIFO ring buffer of primitive ints, the breadth-first counterpart of IntStack.
+// It never holds more than maxSize values, so its worst-case memory is known up front.
+public class IntQueue {
+    private int[] data;
+    private int head, size;
+    private int peak; // Largest size since the last clear()
+    private int maxSize = Integer.MAX_VALUE;
+
+    public IntQueue() {
+        this(256);
+    }
+
+    public IntQueue(int initialCapacity) {
+        this.data = new int[Math.max(16, Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1)];
+    }
+
+    // Callers that enqueue every index at most once can bound the queue by the number of candidates
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void add(int value) {
+        if (size >= maxSize) {
+            throw new IllegalStateException("Queue limit reached: " + maxSize);
+        }
+        if (size == data.length) {
+            grow();
+        }
+        data[(head + size) & (data.length - 1)] = value;
+        size++;
+        if (size > peak) {
+            peak = size;
+        }
+    }
+
+    public int poll() {
+        int value = data[head];
+        head = (head + 1) & (data.length - 1);
+        size--;
+        return value;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getPeakSize() {
+        return peak;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        peak = 0;
+    }
+
+    private void grow() {
+        int[] bigger = new int[data.length << 1];
+        int tail = data.length - head;
+        System.arraycopy(data, head, bigger, 0, tail);
+        System.arraycopy(data, 0, bigger, tail, head);
+        data = bigger;
+        head = 0;
+    }
+}
@@ -0,0 +1,50 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Growable stack of primitive ints. The fill engines push packed pixel
+// indexes (y * width + x) here so the hot loops never allocate per pixel.
+public class IntStack {
+    private int[] data;
+    private int size;
+    private int peak; // Largest size since the last clear()
+
+    public IntStack() {
+        this(256);
+    }
+
+    public IntStack(int initialCapacity) {
+        this.data = new int[Math.max(16, initialCapacity)];
+    }
+
+    public void push(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length << 1);
+        }
+        data[size++] = value;
+        if (size > peak) {
+            peak = size;
+        }
+    }
+
+    public int pop() {
+        return data[--size];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getPeakSize() {
+        return peak;
+    }
+
+    public void clear() {
+        size = 0;
+        peak = 0;
+    }
+}
@@ -0,0 +1,266 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Named off-screen layers of a width x height canvas, composed bottom to top with
+// source-over and a per-layer opacity. All layers live in one int[]: the layer in
+// slot k is rows [k * height, (k + 1) * height) of a (width x height * slots) surface,
+// so one undo history can cover every layer (an entry's y tells the layer).
+// Changes are collected as one dirty rectangle and composed only there.
+// Plain Java: knows nothing about Android or the Canvas component.
+public class LayerStack {
+
+    public static class Layer {
+        final String name;
+        int slot;
+        boolean visible = true;
+        int opacity = 255; // 0-255
+
+        Layer(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        public String getName() { return name; }
+        public int getSlot() { return slot; }
+        public boolean isVisible() { return visible; }
+        public int getOpacity() { return opacity; }
+    }
+
+    private final List<Layer> layers = new ArrayList<>(); // Drawing order, bottom first
+    private int width, height;
+    private int[] data = new int[0];
+    private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom; // Right and bottom exclusive
+
+    public LayerStack() {
+        clearDirty();
+    }
+
+    // Drops every layer; the next ones are width x height
+    public void reset(int width, int height) {
+        this.width = width;
+        this.height = height;
+        layers.clear();
+        data = new int[0];
+        clearDirty();
+    }
+
+    public boolean sameSize(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    public boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+    public Layer get(String name) {
+        for (Layer layer : layers) {
+            if (layer.name.equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    public Layer top() {
+        return layers.isEmpty() ? null : layers.get(layers.size() - 1);
+    }
+
+    public List<String> names() {
+        List<String> names = new ArrayList<>(layers.size());
+        for (Layer layer : layers) {
+            names.add(layer.name);
+        }
+        return names;
+    }
+
+    // New transparent layer on top. Slots are never reordered, so existing rows keep their place.
+    public Layer add(String name) {
+        if (get(name) != null) {
+            throw new IllegalArgumentException("Layer already exists: " + name);
+        }
+        int layerSize = width * height;
+        long total = (long) layerSize * (layers.size() + 1);
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many layers for a " + width + "x" + height + " canvas");
+        }
+        Layer layer = new Layer(name, layers.size());
+        data = Arrays.copyOf(data, (int) total);
+        layers.add(layer);
+        return layer;
+    }
+
+    // Removes the layer and moves the slots above it down one; returns false if there is no such layer.
+    // Removing the last layer leaves nothing dirty: there is nothing to compose, and the Canvas
+    // keeps the last composition.
+    public boolean remove(String name) {
+        Layer removed = get(name);
+        if (removed == null) {
+            return false;
+        }
+        int layerSize = width * height;
+        int from = (removed.slot + 1) * layerSize;
+        System.arraycopy(data, from, data, removed.slot * layerSize, data.length - from);
+        data = Arrays.copyOf(data, data.length - layerSize);
+        layers.remove(removed);
+        for (Layer layer : layers) {
+            if (layer.slot > removed.slot) {
+                layer.slot--;
+            }
+        }
+        if (layers.isEmpty()) {
+            clearDirty();
+        } else {
+            markAllDirty();
+        }
+        return true;
+    }
+
+    public void setVisible(Layer layer, boolean visible) {
+        if (layer.visible != visible) {
+            layer.visible = visible;
+            markAllDirty();
+        }
+    }
+
+    public void setOpacity(Layer layer, int opacity) {
+        opacity = Math.max(0, Math.min(255, opacity));
+        if (layer.opacity != opacity) {
+            layer.opacity = opacity;
+            markAllDirty();
+        }
+    }
+
+    // Every layer as one surface of height * size() rows; undo entries are recorded against it
+    public ArraySurface stackSurface() {
+        return new ArraySurface(data, width, height * layers.size());
+    }
+
+    // Backing array of stackSurface(), valid until the next add or remove
+    public int[] getData() {
+        return data;
+    }
+
+    // First row of the layer in stackSurface()
+    public int rowOffset(Layer layer) {
+        return layer.slot * height;
+    }
+
+    // The layer alone, as a width x height surface
+    public PixelSurface surface(final Layer layer) {
+        return new PixelSurface() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+                int base = layer.slot * width * height;
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(data, base + (y + row) * width + x, dst, offset + row * stride, w);
+                }
+            }
+
+            @Override
+            public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+                int base = layer.slot * width * height;
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(src, offset + row * stride, data, base + (y + row) * width + x, w);
+                }
+            }
+        };
+    }
+
+    public void markDirty(int left, int top, int right, int bottom) {
+        dirtyLeft = Math.min(dirtyLeft, Math.max(0, left));
+        dirtyTop = Math.min(dirtyTop, Math.max(0, top));
+        dirtyRight = Math.max(dirtyRight, Math.min(width, right));
+        dirtyBottom = Math.max(dirtyBottom, Math.min(height, bottom));
+    }
+
+    public void markAllDirty() {
+        markDirty(0, 0, width, height);
+    }
+
+    // The rectangle changed since the last call as {left, top, right, bottom}
+    // (right and bottom exclusive), or null if nothing changed
+    public int[] takeDirty() {
+        if (dirtyLeft >= dirtyRight || dirtyTop >= dirtyBottom) {
+            return null;
+        }
+        int[] dirty = { dirtyLeft, dirtyTop, dirtyRight, dirtyBottom };
+        clearDirty();
+        return dirty;
+    }
+
+    private void clearDirty() {
+        dirtyLeft = Integer.MAX_VALUE;
+        dirtyTop = Integer.MAX_VALUE;
+        dirtyRight = -1;
+        dirtyBottom = -1;
+    }
+
+    // Visible layers over transparent, bottom first, for the rectangle (x, y, w, h) only.
+    // Pixel (x, y) goes to out[y * stride + x].
+    public void compose(int[] out, int stride, int x, int y, int w, int h) {
+        for (int row = y; row < y + h; row++) {
+            int start = row * stride + x;
+            Arrays.fill(out, start, start + w, 0);
+        }
+        int layerSize = width * height;
+        for (Layer layer : layers) {
+            if (!layer.visible || layer.opacity == 0) {
+                continue;
+            }
+            int opacity = layer.opacity;
+            int base = layer.slot * layerSize;
+            for (int row = y; row < y + h; row++) {
+                int src = base + row * width + x;
+                int dst = row * stride + x;
+                for (int i = 0; i < w; i++) {
+                    out[dst + i] = blend(out[dst + i], data[src + i], opacity);
+                }
+            }
+        }
+    }
+
+    // Non-premultiplied source-over of src, scaled by opacity, onto dst
+    static int blend(int dst, int src, int opacity) {
+        int sa = div255((src >>> 24) * opacity);
+        if (sa == 0) {
+            return dst;
+        }
+        if (sa == 255) {
+            return src;
+        }
+        int dw = div255((dst >>> 24) * (255 - sa)); // What still shows of dst
+        int oa = sa + dw;
+        int half = oa >> 1;
+        int r = (((src >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * dw + half) / oa;
+        int g = (((src >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * dw + half) / oa;
+        int b = ((src & 0xFF) * sa + (dst & 0xFF) * dw + half) / oa;
+        return (oa << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // Rounded value / 255 for 0 <= value <= 255 * 255
+    private static int div255(int value) {
+        value += 128;
+        return (value + (value >>> 8)) >>> 8;
+    }
+
+    public long byteSize() {
+        return 4L * data.length;
+    }
+}
@@ -0,0 +1,62 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// Counters of one finished canvas operation. The handler accumulates them in primitive
+// fields while the operation runs and publishes this immutable copy at the end, so it
+// can be read from any thread.
+public class OperationStats {
+    private final String operation;
+    private final long pixelsVisited;
+    private final long pixelsPainted;
+    private final int queuePeak;
+    private final long elapsedNanos;
+    private final long historyBytes;
+    private final int undoDepth;
+    private final int redoDepth;
+
+    public OperationStats(String operation, long pixelsVisited, long pixelsPainted, int queuePeak,
+                          long elapsedNanos, long historyBytes, int undoDepth, int redoDepth) {
+        this.operation = operation;
+        this.pixelsVisited = pixelsVisited;
+        this.pixelsPainted = pixelsPainted;
+        this.queuePeak = queuePeak;
+        this.elapsedNanos = elapsedNanos;
+        this.historyBytes = historyBytes;
+        this.undoDepth = undoDepth;
+        this.redoDepth = redoDepth;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    // Pixels read while searching the region (seeds, spans and the rows next to them)
+    public long getPixelsVisited() {
+        return pixelsVisited;
+    }
+
+    public long getPixelsPainted() {
+        return pixelsPainted;
+    }
+
+    // Largest number of pending seeds (stack or queue) during the operation
+    public int getQueuePeak() {
+        return queuePeak;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Bytes of history entries created by the operation (before any eviction)
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    public int getUndoDepth() {
+        return undoDepth;
+    }
+
+    public int getRedoDepth() {
+        return redoDepth;
+    }
+}
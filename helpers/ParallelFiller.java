@@ -0,0 +1,269 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Flood fill that splits the pixel buffer into square tiles and fills tiles
+// concurrently on a ForkJoinPool. Work proceeds in rounds: every tile with pending
+// seeds runs a scanline fill clipped to its own bounds and, instead of reading
+// across its border, hands the adjacent pixels to the neighbouring tile as seeds
+// for the next round. Tiles never read or write outside their bounds, so a round
+// needs no locking, and the painted region is exactly the one ScanlineFiller paints.
+// Plain Java, like ScanlineFiller.
+public class ParallelFiller implements RegionFiller {
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int tileSize;
+    private ForkJoinPool pool;
+
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private int visitedCount;
+    private int peakQueueSize;
+    private FillBudget budget;
+
+    public ParallelFiller() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    public ParallelFiller(int tileSize) {
+        this.tileSize = Math.max(8, tileSize);
+    }
+
+    // Runs the tiles on pool, which stays owned (and shut down) by the caller.
+    // Without one the common pool is used.
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private ForkJoinPool pool() {
+        return pool != null ? pool : ForkJoinPool.commonPool();
+    }
+
+    private final class Tile implements Callable<Void> {
+        final IntStack seeds = new IntStack(64);
+        final IntStack outbox = new IntStack(64);
+        final int left, top, right, bottom; // Inclusive bounds
+        int[] pixels;
+        int width, height, targetColor, newColor;
+        int count, visited, tMinX, tMinY, tMaxX, tMaxY;
+
+        Tile(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.tMinX = Integer.MAX_VALUE;
+            this.tMinY = Integer.MAX_VALUE;
+            this.tMaxX = Integer.MIN_VALUE;
+            this.tMaxY = Integer.MIN_VALUE;
+        }
+
+        @Override
+        public Void call() {
+            while (!seeds.isEmpty()) {
+                int index = seeds.pop();
+                visited++;
+                if (pixels[index] != targetColor) {
+                    continue;
+                }
+
+                int row = index / width;
+                int rowStart = row * width;
+                int first = rowStart + left;
+                int last = rowStart + right;
+
+                int spanLeft = index;
+                while (spanLeft > first && pixels[spanLeft - 1] == targetColor) {
+                    spanLeft--;
+                }
+                int spanRight = index;
+                while (spanRight < last && pixels[spanRight + 1] == targetColor) {
+                    spanRight++;
+                }
+
+                Arrays.fill(pixels, spanLeft, spanRight + 1, newColor);
+                int span = spanRight - spanLeft + 1;
+                count += span;
+                visited += span - 1;
+                if (spanLeft - rowStart < tMinX) tMinX = spanLeft - rowStart;
+                if (spanRight - rowStart > tMaxX) tMaxX = spanRight - rowStart;
+                if (row < tMinY) tMinY = row;
+                if (row > tMaxY) tMaxY = row;
+                if (budget != null && budget.shouldStop(span)) {
+                    return null; // Every other tile stops at its next span
+                }
+
+                if (row > top) {
+                    ScanlineFiller.pushSeeds(seeds, pixels, spanLeft - width, spanRight - width, targetColor);
+                    visited += span;
+                } else if (row > 0) {
+                    handOver(spanLeft - width, spanRight - width);
+                }
+                if (row < bottom) {
+                    ScanlineFiller.pushSeeds(seeds, pixels, spanLeft + width, spanRight + width, targetColor);
+                    visited += span;
+                } else if (row < height - 1) {
+                    handOver(spanLeft + width, spanRight + width);
+                }
+                if (spanLeft == first && left > 0) {
+                    outbox.push(spanLeft - 1);
+                }
+                if (spanRight == last && right < width - 1) {
+                    outbox.push(spanRight + 1);
+                }
+            }
+            return null;
+        }
+
+        // Pixels of a neighbouring tile are never read here; the neighbour checks them next round
+        private void handOver(int from, int to) {
+            for (int i = from; i <= to; i++) {
+                outbox.push(i);
+            }
+        }
+    }
+
+    @Override
+    public void setBudget(FillBudget budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        resetBounds();
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        int targetColor = pixels[y * width + x];
+        if (targetColor == newColor) {
+            return 0;
+        }
+
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        Tile[] tiles = new Tile[tilesX * tilesY];
+        List<Tile> round = new ArrayList<>();
+        round.add(tileFor(tiles, tilesX, width, height, y * width + x, pixels, targetColor, newColor));
+        round.get(0).seeds.push(y * width + x);
+
+        try {
+            while (!round.isEmpty()) {
+                for (Future<Void> future : pool().invokeAll(round)) {
+                    future.get();
+                }
+
+                // Deliver the seeds handed over across tile borders
+                List<Tile> next = new ArrayList<>();
+                for (Tile tile : round) {
+                    while (!tile.outbox.isEmpty()) {
+                        int index = tile.outbox.pop();
+                        Tile target = tileFor(tiles, tilesX, width, height, index, pixels, targetColor, newColor);
+                        if (target.seeds.isEmpty()) {
+                            next.add(target);
+                        }
+                        target.seeds.push(index);
+                    }
+                }
+                round = budget != null && budget.isStopped() ? new ArrayList<Tile>() : next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Parallel fill interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel fill failed", e.getCause());
+        }
+
+        for (Tile tile : tiles) {
+            if (tile == null) {
+                continue;
+            }
+            visitedCount += tile.visited;
+            peakQueueSize = Math.max(peakQueueSize, tile.seeds.getPeakSize());
+            if (tile.count == 0) {
+                continue;
+            }
+            filledCount += tile.count;
+            if (tile.tMinX < minX) minX = tile.tMinX;
+            if (tile.tMinY < minY) minY = tile.tMinY;
+            if (tile.tMaxX > maxX) maxX = tile.tMaxX;
+            if (tile.tMaxY > maxY) maxY = tile.tMaxY;
+        }
+        return filledCount;
+    }
+
+    private Tile tileFor(Tile[] tiles, int tilesX, int width, int height, int index,
+                         int[] pixels, int targetColor, int newColor) {
+        int tileX = (index % width) / tileSize;
+        int tileY = (index / width) / tileSize;
+        Tile tile = tiles[tileY * tilesX + tileX];
+        if (tile == null) {
+            int left = tileX * tileSize;
+            int top = tileY * tileSize;
+            tile = new Tile(left, top, Math.min(left + tileSize, width) - 1, Math.min(top + tileSize, height) - 1);
+            tile.pixels = pixels;
+            tile.width = width;
+            tile.height = height;
+            tile.targetColor = targetColor;
+            tile.newColor = newColor;
+            tiles[tileY * tilesX + tileX] = tile;
+        }
+        return tile;
+    }
+
+    private void resetBounds() {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+        visitedCount = 0;
+        peakQueueSize = 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    @Override
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    @Override
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    // Largest seed stack of a single tile
+    @Override
+    public int getPeakQueueSize() {
+        return peakQueueSize;
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxX() {
+        return maxX;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
@@ -0,0 +1,109 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// Paints a repeating tile over the spans reported by a filler, in one pass: the tile is
+// anchored to the canvas origin, so each span reads one tile row starting at x0 % tileWidth
+// and wraps without a modulo per pixel. Tile pixels with alpha 0 keep the pixel underneath.
+// Also builds the two-color tiles of the built-in patterns.
+public class PatternPainter implements ScanlineFiller.SpanListener {
+    public static final String DOTS = "dots";
+    public static final String HATCH = "hatch";
+    public static final String CROSSHATCH = "crosshatch";
+    public static final String CHECKER = "checker";
+    public static final int MAX_TILE_SIZE = 256; // Per side; larger images are scaled down to fit
+
+    private int[] out;
+    private int width;
+    private int[] tile;
+    private int tileWidth, tileHeight;
+    private int minX, minY, maxX, maxY;
+    private int paintedCount;
+
+    public void begin(int[] out, int width, int[] tile, int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0 || tile.length < tileWidth * tileHeight) {
+            throw new IllegalArgumentException("Invalid pattern tile " + tileWidth + "x" + tileHeight);
+        }
+        this.out = out;
+        this.width = width;
+        this.tile = tile;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        paintedCount = 0;
+    }
+
+    @Override
+    public void onSpan(int y, int x0, int x1) {
+        int tileRow = (y % tileHeight) * tileWidth;
+        int column = x0 % tileWidth;
+        int index = y * width + x0;
+        int end = y * width + x1;
+        for (; index <= end; index++) {
+            int color = tile[tileRow + column];
+            if ((color >>> 24) != 0) {
+                out[index] = color;
+            }
+            if (++column == tileWidth) {
+                column = 0;
+            }
+        }
+        paintedCount += x1 - x0 + 1;
+        if (x0 < minX) minX = x0;
+        if (x1 > maxX) maxX = x1;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    // Two-color tile of a built-in pattern with cells of size pixels (at least 2)
+    public static int[] createTile(String pattern, int size, int color, int background) {
+        int n = Math.max(2, size);
+        int[] tile = new int[n * n];
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                boolean on;
+                if (DOTS.equals(pattern)) {
+                    // A disc of diameter n / 2 in the middle of the cell
+                    float dx = x + 0.5f - n / 2f, dy = y + 0.5f - n / 2f;
+                    on = dx * dx + dy * dy <= n * n / 16f;
+                } else if (HATCH.equals(pattern)) {
+                    on = (x + y) % n == 0;
+                } else if (CROSSHATCH.equals(pattern)) {
+                    on = (x + y) % n == 0 || (x - y + n) % n == 0;
+                } else if (CHECKER.equals(pattern)) {
+                    on = (x < n / 2) == (y < n / 2);
+                } else {
+                    throw new IllegalArgumentException("Unknown pattern: " + pattern);
+                }
+                tile[y * n + x] = on ? color : background;
+            }
+        }
+        return tile;
+    }
+
+    // Pixels covered by the region, including those the tile left unchanged
+    public int getPaintedCount() {
+        return paintedCount;
+    }
+
+    public boolean isEmpty() {
+        return minX > maxX;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+}
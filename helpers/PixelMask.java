@@ -0,0 +1,157 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// One bit per pixel of a width x height canvas, indexed like the pixel buffers
+// (y * width + x) and packed 64 to a long.
+public class PixelMask {
+    private final int width, height;
+    private final long[] words;
+
+    public PixelMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.words = new long[(width * height + 63) >>> 6];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean sameSize(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    public long[] words() {
+        return words;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
+
+    // Sets bits [from, to)
+    public void setRange(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    // Clears bits [from, to)
+    public void clearRange(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[first] &= ~(firstMask & lastMask);
+            return;
+        }
+        words[first] &= ~firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = 0L;
+        }
+        words[last] &= ~lastMask;
+    }
+
+    public void clearAll() {
+        Arrays.fill(words, 0L);
+    }
+
+    public void copyFrom(PixelMask other) {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    // Boolean operations with a mask of the same size, one word (64 pixels) at a time
+    public void or(PixelMask other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public void and(PixelMask other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    public void andNot(PixelMask other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
+    // Index of the first set bit at or after from, or -1. With nextClearBit this walks the
+    // mask as runs; runs may continue on the next row, as the pixel buffers do.
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return -1;
+        }
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    // Index of the first clear bit at or after from, at most width * height
+    public int nextClearBit(int from) {
+        int size = width * height;
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return size;
+        }
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return size;
+            }
+            word = ~words[w];
+        }
+        return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public long byteSize() {
+        return 8L * words.length;
+    }
+}
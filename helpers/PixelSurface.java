@@ -0,0 +1,14 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// Android-free view of a width x height ARGB pixel store: the working Bitmap on the
+// device, a plain int[] on the JVM (benchmarks, tests). Same contract as
+// Bitmap.getPixels/setPixels: the rectangle (x, y, w, h) maps to buffer[offset + row * stride + column].
+public interface PixelSurface {
+    int getWidth();
+
+    int getHeight();
+
+    void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h);
+
+    void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h);
+}
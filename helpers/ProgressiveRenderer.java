@@ -0,0 +1,79 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// Collects the spans painted by a running fill into one dirty rectangle and hands it
+// to a Sink at most once per frame interval, together with a progress estimate.
+// The Sink publishes the rectangle (e.g. copies it to the Canvas and invalidates it),
+// so the fill is seen growing while the redraw cost stays capped at one per frame.
+public class ProgressiveRenderer implements ScanlineFiller.SpanListener {
+    public static final long DEFAULT_FRAME_MILLIS = 16;
+
+    public interface Sink {
+        // Bounds are inclusive; percent is 0-100, or -1 while the region size is unknown
+        void onFrame(int left, int top, int right, int bottom, int percent);
+    }
+
+    private long frameNanos = DEFAULT_FRAME_MILLIS * 1000000L;
+    private Sink sink;
+    private long expected, painted;
+    private long lastFrame;
+    private int left, top, right, bottom;
+
+    public long getFrameMillis() {
+        return frameNanos / 1000000L;
+    }
+
+    public void setFrameMillis(long millis) {
+        this.frameNanos = Math.max(1, millis) * 1000000L;
+    }
+
+    // expectedPixels is the region size, used for the percentage; 0 or less if it is not
+    // known, and then frames report -1 until finish() reports 100
+    public void begin(long expectedPixels, Sink sink) {
+        this.sink = sink;
+        this.expected = expectedPixels;
+        this.painted = 0;
+        this.lastFrame = System.nanoTime();
+        resetDirty();
+    }
+
+    @Override
+    public void onSpan(int y, int x0, int x1) {
+        painted += x1 - x0 + 1;
+        if (x0 < left) left = x0;
+        if (x1 > right) right = x1;
+        if (y < top) top = y;
+        if (y > bottom) bottom = y;
+
+        long now = System.nanoTime();
+        if (now - lastFrame >= frameNanos) {
+            lastFrame = now;
+            // The fill is not over yet, so never report 100 here
+            flush(expected > 0 ? (int) Math.min(99, painted * 100 / expected) : -1);
+        }
+    }
+
+    // Publishes whatever is still dirty and reports completion
+    public void finish() {
+        flush(100);
+        sink = null;
+    }
+
+    private void flush(int percent) {
+        if (sink == null) {
+            return;
+        }
+        if (left <= right) {
+            sink.onFrame(left, top, right, bottom, percent);
+        } else if (percent == 100) {
+            sink.onFrame(0, 0, -1, -1, percent);
+        }
+        resetDirty();
+    }
+
+    private void resetDirty() {
+        left = Integer.MAX_VALUE;
+        top = Integer.MAX_VALUE;
+        right = Integer.MIN_VALUE;
+        bottom = Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,27 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+// A flood fill over a flat ARGB buffer (row-major, stride = width) that reports
+// the bounding box (inclusive) and pixel count of the last region it painted,
+// plus how much work finding it took: pixels read and the largest pending-seed count.
+public interface RegionFiller {
+    int fill(int[] pixels, int width, int height, int x, int y, int newColor);
+
+    // Checked once per span; when it stops the fill returns early with a partial region. Null for none.
+    void setBudget(FillBudget budget);
+
+    boolean isEmpty();
+
+    int getFilledCount();
+
+    int getVisitedCount();
+
+    int getPeakQueueSize();
+
+    int getMinX();
+
+    int getMinY();
+
+    int getMaxX();
+
+    int getMaxY();
+}
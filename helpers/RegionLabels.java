@@ -0,0 +1,302 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Connected-component labeling of a pixel buffer (4-connected, same exact color),
+// kept as a cache so that filling a region of static line art is a direct blit of
+// its precomputed spans instead of a traversal.
+// Storage: an int[] label per pixel, plus every region's horizontal spans grouped
+// by region (CSR layout: spans of region r are triples (y, x0, x1) at
+// spans[3 * spanStart[r] .. 3 * spanStart[r + 1])).
+// A fill through the cache keeps it valid unless the new color touches another
+// region of that color (the two would now be one region); anything else that
+// changes pixels must call invalidate(). Plain Java.
+public class RegionLabels implements RegionFiller {
+    private int width, height;
+    private int[] labels;
+    private int[] regionColor;
+    private int[] spanStart;
+    private int[] spans;
+    private int regionCount;
+    private boolean valid;
+
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private FillBudget budget;
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public boolean isValidFor(int width, int height) {
+        return valid && this.width == width && this.height == height;
+    }
+
+    public void invalidate() {
+        valid = false;
+    }
+
+    // Drops the arrays as well
+    public void release() {
+        valid = false;
+        labels = null;
+        regionColor = null;
+        spanStart = null;
+        spans = null;
+        regionCount = 0;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    public long byteSize() {
+        long bytes = 0;
+        if (labels != null) bytes += 4L * labels.length;
+        if (regionColor != null) bytes += 4L * regionColor.length;
+        if (spanStart != null) bytes += 4L * spanStart.length;
+        if (spans != null) bytes += 4L * spans.length;
+        return bytes;
+    }
+
+    public void build(int[] pixels, int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        // Pass 1: split every row into runs of one color and union each run with the
+        // runs of the same color it overlaps in the row above
+        int[] runY = new int[1024], runX0 = new int[1024], runX1 = new int[1024], parent = new int[1024];
+        int runCount = 0;
+        int previousFirst = 0, previousEnd = 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            int first = runCount;
+            int x = 0;
+            while (x < width) {
+                int color = pixels[rowStart + x];
+                int x0 = x;
+                while (++x < width && pixels[rowStart + x] == color) { }
+                if (runCount == runY.length) {
+                    int capacity = runCount << 1;
+                    runY = Arrays.copyOf(runY, capacity);
+                    runX0 = Arrays.copyOf(runX0, capacity);
+                    runX1 = Arrays.copyOf(runX1, capacity);
+                    parent = Arrays.copyOf(parent, capacity);
+                }
+                runY[runCount] = y;
+                runX0[runCount] = x0;
+                runX1[runCount] = x - 1;
+                parent[runCount] = runCount;
+                runCount++;
+            }
+
+            // Both rows' runs are sorted by x: merge-walk the overlaps
+            int above = previousFirst;
+            for (int run = first; run < runCount && above < previousEnd; run++) {
+                while (above < previousEnd && runX1[above] < runX0[run]) {
+                    above++;
+                }
+                int scan = above;
+                while (scan < previousEnd && runX0[scan] <= runX1[run]) {
+                    if (pixels[rowStart - width + runX0[scan]] == pixels[rowStart + runX0[run]]) {
+                        union(parent, run, scan);
+                    }
+                    scan++;
+                }
+            }
+            previousFirst = first;
+            previousEnd = runCount;
+        }
+
+        // Pass 2: number the roots, count spans per region, then lay spans out by region
+        int[] region = new int[runCount];
+        int regions = 0;
+        for (int run = 0; run < runCount; run++) {
+            int root = find(parent, run);
+            region[run] = root == run ? regions++ : -1;
+        }
+        int[] color = new int[regions];
+        int[] start = new int[regions + 1];
+        for (int run = 0; run < runCount; run++) {
+            int r = region[run] >= 0 ? region[run] : region[find(parent, run)];
+            region[run] = r;
+            start[r + 1]++;
+            color[r] = pixels[runY[run] * width + runX0[run]];
+        }
+        for (int r = 0; r < regions; r++) {
+            start[r + 1] += start[r];
+        }
+
+        int[] next = Arrays.copyOf(start, regions);
+        int[] spanData = new int[3 * runCount];
+        int[] labelMap = labels != null && labels.length == width * height ? labels : new int[width * height];
+        for (int run = 0; run < runCount; run++) {
+            int r = region[run];
+            int slot = 3 * next[r]++;
+            spanData[slot] = runY[run];
+            spanData[slot + 1] = runX0[run];
+            spanData[slot + 2] = runX1[run];
+            int rowStart = runY[run] * width;
+            Arrays.fill(labelMap, rowStart + runX0[run], rowStart + runX1[run] + 1, r);
+        }
+
+        this.labels = labelMap;
+        this.regionColor = color;
+        this.spanStart = start;
+        this.spans = spanData;
+        this.regionCount = regions;
+        this.valid = true;
+    }
+
+    private static int find(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];
+            node = parent[node];
+        }
+        return node;
+    }
+
+    // The smaller index stays root, so a root always comes before its members
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    // Pixels in the cached region under (x, y), summed over its spans; -1 without a valid cache
+    public int regionSize(int x, int y) {
+        if (!valid || x < 0 || y < 0 || x >= width || y >= height) {
+            return -1;
+        }
+        int r = labels[y * width + x];
+        int size = 0;
+        for (int i = 3 * spanStart[r]; i < 3 * spanStart[r + 1]; i += 3) {
+            size += spans[i + 2] - spans[i + 1] + 1;
+        }
+        return size;
+    }
+
+    // True when the region under the seed still holds exactly its cached color
+    public boolean matches(int[] pixels, int x, int y) {
+        if (!valid || x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        int r = labels[y * width + x];
+        int color = regionColor[r];
+        for (int i = 3 * spanStart[r]; i < 3 * spanStart[r + 1]; i += 3) {
+            int rowStart = spans[i] * width;
+            for (int p = rowStart + spans[i + 1]; p <= rowStart + spans[i + 2]; p++) {
+                if (pixels[p] != color) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Blits newColor over the cached spans of the seed's region. Call matches() first.
+    @Override
+    public void setBudget(FillBudget budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        resetBounds();
+        if (!isValidFor(width, height) || x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        int r = labels[y * width + x];
+        if (regionColor[r] == newColor) {
+            return 0;
+        }
+
+        int end = 3 * spanStart[r + 1];
+        for (int i = 3 * spanStart[r]; i < end; i += 3) {
+            int row = spans[i], x0 = spans[i + 1], x1 = spans[i + 2];
+            int rowStart = row * width;
+            Arrays.fill(pixels, rowStart + x0, rowStart + x1 + 1, newColor);
+            filledCount += x1 - x0 + 1;
+            if (x0 < minX) minX = x0;
+            if (x1 > maxX) maxX = x1;
+            if (row < minY) minY = row;
+            if (row > maxY) maxY = row;
+            if (budget != null && budget.shouldStop(x1 - x0 + 1)) {
+                return filledCount; // Labels still describe the colors before the fill, which the caller restores
+            }
+        }
+        regionColor[r] = newColor;
+
+        // A neighbouring region that already has newColor now belongs to this one
+        for (int i = 3 * spanStart[r]; i < end && valid; i += 3) {
+            int row = spans[i], x0 = spans[i + 1], x1 = spans[i + 2];
+            int rowStart = row * width;
+            if (x0 > 0) checkNeighbour(pixels, rowStart + x0 - 1, r, newColor);
+            if (x1 < width - 1) checkNeighbour(pixels, rowStart + x1 + 1, r, newColor);
+            for (int p = x0; p <= x1 && valid; p++) {
+                if (row > 0) checkNeighbour(pixels, rowStart - width + p, r, newColor);
+                if (row < height - 1) checkNeighbour(pixels, rowStart + width + p, r, newColor);
+            }
+        }
+        return filledCount;
+    }
+
+    private void checkNeighbour(int[] pixels, int index, int r, int newColor) {
+        if (pixels[index] == newColor && labels[index] != r) {
+            valid = false;
+        }
+    }
+
+    private void resetBounds() {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    @Override
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    // No search: only the painted pixels are touched (plus the border check)
+    @Override
+    public int getVisitedCount() {
+        return filledCount;
+    }
+
+    @Override
+    public int getPeakQueueSize() {
+        return 0;
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxX() {
+        return maxX;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
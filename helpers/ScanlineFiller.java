@@ -0,0 +1,163 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Scanline span flood fill over a flat ARGB pixel buffer (row-major, stride = width).
+// Plain Java on purpose: no android.* imports, so it can be unit-tested and
+// benchmarked on a desktop JVM.
+public class ScanlineFiller implements RegionFiller {
+
+    // Receives every horizontal span painted by the fill, x0 and x1 inclusive.
+    public interface SpanListener {
+        void onSpan(int y, int x0, int x1);
+    }
+
+    private final IntStack stack = new IntStack(1024);
+
+    // Bounding box of the last fill, inclusive. Empty when minX > maxX.
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private int visitedCount;
+    private FillBudget budget;
+
+    @Override
+    public void setBudget(FillBudget budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        return fill(pixels, width, height, x, y, newColor, null);
+    }
+
+    // Replaces the 4-connected region of the seed's color with newColor.
+    // Returns the number of pixels painted.
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor, SpanListener listener) {
+        resetBounds();
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+
+        final int targetColor = pixels[y * width + x];
+        if (targetColor == newColor) {
+            return 0;
+        }
+
+        stack.clear();
+        stack.push(y * width + x);
+
+        while (!stack.isEmpty()) {
+            int index = stack.pop();
+            visitedCount++;
+            if (pixels[index] != targetColor) {
+                continue; // Already painted through another seed
+            }
+
+            int row = index / width;
+            int rowStart = row * width;
+            int rowEnd = rowStart + width - 1;
+
+            int left = index;
+            while (left > rowStart && pixels[left - 1] == targetColor) {
+                left--;
+            }
+            int right = index;
+            while (right < rowEnd && pixels[right + 1] == targetColor) {
+                right++;
+            }
+
+            Arrays.fill(pixels, left, right + 1, newColor);
+            int span = right - left + 1;
+            filledCount += span;
+            visitedCount += span - 1; // The seed was counted when popped
+
+            int x0 = left - rowStart;
+            int x1 = right - rowStart;
+            if (x0 < minX) minX = x0;
+            if (x1 > maxX) maxX = x1;
+            if (row < minY) minY = row;
+            if (row > maxY) maxY = row;
+
+            if (listener != null) {
+                listener.onSpan(row, x0, x1);
+            }
+            if (budget != null && budget.shouldStop(span)) {
+                break;
+            }
+
+            if (row > 0) {
+                pushSeeds(stack, pixels, left - width, right - width, targetColor);
+                visitedCount += span;
+            }
+            if (row < height - 1) {
+                pushSeeds(stack, pixels, left + width, right + width, targetColor);
+                visitedCount += span;
+            }
+        }
+        return filledCount;
+    }
+
+    // Pushes one seed per run of target pixels in [from, to] of an adjacent row.
+    static void pushSeeds(IntStack stack, int[] pixels, int from, int to, int targetColor) {
+        boolean inRun = false;
+        for (int i = from; i <= to; i++) {
+            if (pixels[i] == targetColor) {
+                if (!inRun) {
+                    stack.push(i);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+    }
+
+    private void resetBounds() {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+        visitedCount = 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    @Override
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    @Override
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    @Override
+    public int getPeakQueueSize() {
+        return stack.getPeakSize();
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxX() {
+        return maxX;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
@@ -0,0 +1,252 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Saved drawing session: the raw ARGB pixels of the canvas plus its undo/redo history,
+// in one versioned binary file written and read through a FileChannel in large blocks.
+// The body (everything after the header) may be deflate-compressed.
+//
+// Layout (big endian): header [magic][version][width][height][flags], then the body:
+// width * height pixels, [undo count][redo count], and each history entry as
+// [x][y][w][h][raw][data length][data...]. Undo entries are stored oldest first,
+// redo entries with the next one to redo last.
+public final class SessionFile {
+    private static final int MAGIC = 0x4543534E; // "ECSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int FLAG_DEFLATE = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SessionFile() {
+    }
+
+    public static void write(File file, int[] pixels, int width, int height, DeltaHistory history, boolean compress) throws IOException {
+        List<DeltaHistory.Entry> undo = history.getUndoEntries();
+        List<DeltaHistory.Entry> redo = history.getRedoEntries();
+
+        FileOutputStream out = new FileOutputStream(file);
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(compress ? FLAG_DEFLATE : 0);
+            drain(buffer, channel);
+
+            DeflaterOutputStream deflated = null;
+            WritableByteChannel body = channel;
+            if (compress) {
+                deflated = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, BUFFER_SIZE);
+                body = Channels.newChannel(deflated);
+            }
+            putInts(buffer, body, pixels, width * height);
+            putInt(buffer, body, undo.size());
+            putInt(buffer, body, redo.size());
+            for (DeltaHistory.Entry entry : undo) {
+                putEntry(buffer, body, entry);
+            }
+            for (DeltaHistory.Entry entry : redo) {
+                putEntry(buffer, body, entry);
+            }
+            drain(buffer, body);
+            if (deflated != null) {
+                deflated.finish();
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    // Reads the pixels into the first width * height ints of pixels and replaces the history.
+    // Fails without touching the history if the file is not a session of a width x height canvas.
+    public static void read(File file, int[] pixels, int width, int height, DeltaHistory history) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        Inflater inflater = null;
+        try {
+            FileChannel channel = in.getChannel();
+            // The header is read on its own so no body byte is consumed before the inflater sees it
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            fill(header, channel, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a canvas session file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session version " + version);
+            }
+            int fileWidth = header.getInt();
+            int fileHeight = header.getInt();
+            if (fileWidth != width || fileHeight != height) {
+                throw new IOException("Session is " + fileWidth + "x" + fileHeight
+                        + " but the canvas is " + width + "x" + height);
+            }
+            boolean compressed = (header.getInt() & FLAG_DEFLATE) != 0;
+
+            ReadableByteChannel body = channel;
+            if (compressed) {
+                inflater = new Inflater();
+                body = Channels.newChannel(new InflaterInputStream(Channels.newInputStream(channel), inflater, BUFFER_SIZE));
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.limit(0);
+            getInts(buffer, body, pixels, width * height);
+            int undoCount = getInt(buffer, body);
+            int redoCount = getInt(buffer, body);
+            if (undoCount < 0 || redoCount < 0) {
+                throw new IOException("Corrupted session history");
+            }
+            List<DeltaHistory.Entry> undo = new ArrayList<>();
+            for (int i = 0; i < undoCount; i++) {
+                undo.add(getEntry(buffer, body, width, height));
+            }
+            List<DeltaHistory.Entry> redo = new ArrayList<>();
+            for (int i = 0; i < redoCount; i++) {
+                redo.add(getEntry(buffer, body, width, height));
+            }
+            history.setEntries(undo, redo);
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            in.close();
+        }
+    }
+
+    private static void putEntry(ByteBuffer buffer, WritableByteChannel channel, DeltaHistory.Entry entry) throws IOException {
+        putInt(buffer, channel, entry.x);
+        putInt(buffer, channel, entry.y);
+        putInt(buffer, channel, entry.w);
+        putInt(buffer, channel, entry.h);
+        putInt(buffer, channel, entry.raw ? 1 : 0);
+        putInt(buffer, channel, entry.data.length);
+        putInts(buffer, channel, entry.data, entry.data.length);
+    }
+
+    private static DeltaHistory.Entry getEntry(ByteBuffer buffer, ReadableByteChannel channel, int width, int height) throws IOException {
+        int x = getInt(buffer, channel);
+        int y = getInt(buffer, channel);
+        int w = getInt(buffer, channel);
+        int h = getInt(buffer, channel);
+        boolean raw = getInt(buffer, channel) != 0;
+        int length = getInt(buffer, channel);
+        long area = (long) w * h;
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height
+                || length < 0 || (raw ? length != area : length > 2 * area)) {
+            throw new IOException("Corrupted session history");
+        }
+        int[] data = new int[length];
+        getInts(buffer, channel, data, length);
+        if (!raw && !validRuns(data, w, h)) {
+            throw new IOException("Corrupted session history");
+        }
+        return new DeltaHistory.Entry(x, y, w, h, data, raw);
+    }
+
+    // (count, color) pairs with positive counts that end exactly at each row end and cover
+    // h rows: decoding them can neither cross a row nor write outside the entry
+    private static boolean validRuns(int[] data, int w, int h) {
+        if ((data.length & 1) != 0) {
+            return false;
+        }
+        int rows = 0;
+        int column = 0;
+        for (int i = 0; i < data.length; i += 2) {
+            int count = data[i];
+            if (count <= 0 || count > w - column) {
+                return false;
+            }
+            column += count;
+            if (column == w) {
+                column = 0;
+                rows++;
+            }
+        }
+        return rows == h && column == 0;
+    }
+
+    private static void putInt(ByteBuffer buffer, WritableByteChannel channel, int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            drain(buffer, channel);
+        }
+        buffer.putInt(value);
+    }
+
+    // Copies ints into the buffer block by block, writing it out whenever it is full
+    private static void putInts(ByteBuffer buffer, WritableByteChannel channel, int[] src, int count) throws IOException {
+        int done = 0;
+        while (done < count) {
+            if (buffer.remaining() < 4) {
+                drain(buffer, channel);
+            }
+            int n = Math.min(buffer.remaining() >> 2, count - done);
+            buffer.asIntBuffer().put(src, done, n);
+            buffer.position(buffer.position() + (n << 2));
+            done += n;
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int getInt(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        if (buffer.remaining() < 4) {
+            refill(buffer, channel);
+        }
+        return buffer.getInt();
+    }
+
+    private static void getInts(ByteBuffer buffer, ReadableByteChannel channel, int[] dst, int count) throws IOException {
+        int done = 0;
+        while (done < count) {
+            if (buffer.remaining() < 4) {
+                refill(buffer, channel);
+            }
+            int n = Math.min(buffer.remaining() >> 2, count - done);
+            buffer.asIntBuffer().get(dst, done, n);
+            buffer.position(buffer.position() + (n << 2));
+            done += n;
+        }
+    }
+
+    // Keeps the unread bytes and reads at least one more int
+    private static void refill(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        buffer.compact();
+        while (buffer.position() < 4) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Session file is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void fill(ByteBuffer buffer, ReadableByteChannel channel, int length) throws IOException {
+        while (buffer.position() < length) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Session file is truncated");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,93 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Stamps discs, squares and points of one color straight into an off-screen ARGB
+// buffer and keeps the bounding box it touched, so a stylized fill reaches the
+// Canvas as a single rectangle write instead of one component call per stamp.
+// As a SpanListener it stamps a disc on every pixel of each span the filler reports.
+public class Stamper implements ScanlineFiller.SpanListener {
+    private int[] out;
+    private int width, height, color;
+    private float radius;
+    private int minX, minY, maxX, maxY;
+    private int stampedCount; // Pixel writes, overlapping stamps included
+
+    public void begin(int[] out, int width, int height, int color, float radius) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.color = color;
+        this.radius = Math.max(0f, radius);
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        stampedCount = 0;
+    }
+
+    // Union of the discs centered on every pixel of the span: on row y + dy that is
+    // one run widened by the disc's half-width at dy, so a span costs O(radius) runs
+    @Override
+    public void onSpan(int y, int x0, int x1) {
+        int reach = (int) radius;
+        float radiusSquared = radius * radius;
+        for (int dy = -reach; dy <= reach; dy++) {
+            int halfWidth = (int) Math.sqrt(radiusSquared - dy * dy);
+            run(y + dy, x0 - halfWidth, x1 + halfWidth);
+        }
+    }
+
+    // Square of side 2 * half + 1 centered on (x, y)
+    public void square(int x, int y, int half) {
+        for (int row = y - half; row <= y + half; row++) {
+            run(row, x - half, x + half);
+        }
+    }
+
+    public void point(int x, int y) {
+        run(y, x, x);
+    }
+
+    private void run(int y, int x0, int x1) {
+        if (y < 0 || y >= height) {
+            return;
+        }
+        if (x0 < 0) x0 = 0;
+        if (x1 >= width) x1 = width - 1;
+        if (x0 > x1) {
+            return;
+        }
+        int rowStart = y * width;
+        Arrays.fill(out, rowStart + x0, rowStart + x1 + 1, color);
+        stampedCount += x1 - x0 + 1;
+        if (x0 < minX) minX = x0;
+        if (x1 > maxX) maxX = x1;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    public boolean isEmpty() {
+        return minX > maxX;
+    }
+
+    public int getStampedCount() {
+        return stampedCount;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+}
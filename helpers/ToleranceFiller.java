@@ -0,0 +1,220 @@
+package com.bosonshiggs.extendedcanvas.helpers;
+
+import java.util.Arrays;
+
+// Flood fill that also takes pixels whose color is close to the seed color, so the
+// anti-aliased edge of a stroke is filled in one pass instead of leaving a halo.
+// Two pixels match when every ARGB channel differs by at most the tolerance (0-255).
+// A match mask for the whole buffer is built first in one branch-free pass; the
+// scanline fill then walks the mask and clears the bits it paints, so the mask is
+// also the visited set. The mask is kept between fills to avoid reallocating it.
+public class ToleranceFiller implements RegionFiller {
+    private final IntStack stack = new IntStack(1024);
+    private PixelMask mask;
+    private int tolerance;
+
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private int visitedCount;
+    private FillBudget budget;
+
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(int tolerance) {
+        this.tolerance = Math.max(0, Math.min(255, tolerance));
+    }
+
+    // Largest per-channel difference between two ARGB colors, without branches
+    static int channelDistance(int a, int b) {
+        int da = absolute((a >>> 24) - (b >>> 24));
+        int dr = absolute(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF));
+        int dg = absolute(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+        int db = absolute((a & 0xFF) - (b & 0xFF));
+        return max(max(da, dr), max(dg, db));
+    }
+
+    private static int absolute(int value) {
+        int sign = value >> 31;
+        return (value ^ sign) - sign;
+    }
+
+    private static int max(int a, int b) {
+        int diff = a - b;
+        return a - (diff & (diff >> 31));
+    }
+
+    // Sets the bit of every pixel within tolerance of targetColor. Reusable by any
+    // caller that needs "pixels of this color" without running a fill.
+    public static void buildMatchMask(int[] pixels, int size, int targetColor, int tolerance, PixelMask out) {
+        long[] words = out.words();
+        int index = 0;
+        for (int w = 0; index < size; w++) {
+            long word = 0L;
+            int end = Math.min(size, index + 64);
+            for (int bit = 0; index < end; bit++, index++) {
+                // 1 when distance <= tolerance: the sign bit of (tolerance - distance) is clear
+                long match = ((tolerance - channelDistance(pixels[index], targetColor)) >>> 31) ^ 1;
+                word |= match << bit;
+            }
+            words[w] = word;
+        }
+    }
+
+    @Override
+    public void setBudget(FillBudget budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public int fill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        resetBounds();
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        int seed = y * width + x;
+        int targetColor = pixels[seed];
+        if (tolerance == 0 && targetColor == newColor) {
+            return 0;
+        }
+        return walk(pixels, width, height, seed, newColor, null);
+    }
+
+    // Reports the spans of the region without modifying pixels. The listener may
+    // write into pixels (e.g. stamp a pattern): only the mask is read while walking.
+    public int trace(int[] pixels, int width, int height, int x, int y, ScanlineFiller.SpanListener listener) {
+        resetBounds();
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        return walk(pixels, width, height, y * width + x, 0, listener);
+    }
+
+    // Paints newColor when listener is null, otherwise hands every span to the listener
+    private int walk(int[] pixels, int width, int height, int seed, int newColor, ScanlineFiller.SpanListener listener) {
+        buildMatchMask(pixels, width * height, pixels[seed], tolerance, obtainMask(width, height));
+        visitedCount = width * height; // The mask reads every pixel once; the walk below only reads the mask
+
+        stack.clear();
+        stack.push(seed);
+        while (!stack.isEmpty()) {
+            int index = stack.pop();
+            visitedCount++;
+            if (!mask.get(index)) {
+                continue;
+            }
+
+            int row = index / width;
+            int rowStart = row * width;
+            int rowEnd = rowStart + width - 1;
+
+            int left = index;
+            while (left > rowStart && mask.get(left - 1)) {
+                left--;
+            }
+            int right = index;
+            while (right < rowEnd && mask.get(right + 1)) {
+                right++;
+            }
+
+            mask.clearRange(left, right + 1);
+            if (listener == null) {
+                Arrays.fill(pixels, left, right + 1, newColor);
+            } else {
+                listener.onSpan(row, left - rowStart, right - rowStart);
+            }
+            int span = right - left + 1;
+            filledCount += span;
+            visitedCount += span - 1;
+
+            if (left - rowStart < minX) minX = left - rowStart;
+            if (right - rowStart > maxX) maxX = right - rowStart;
+            if (row < minY) minY = row;
+            if (row > maxY) maxY = row;
+            if (budget != null && budget.shouldStop(span)) {
+                break;
+            }
+
+            if (row > 0) {
+                pushSeeds(left - width, right - width);
+                visitedCount += span;
+            }
+            if (row < height - 1) {
+                pushSeeds(left + width, right + width);
+                visitedCount += span;
+            }
+        }
+        return filledCount;
+    }
+
+    private PixelMask obtainMask(int width, int height) {
+        if (mask == null || !mask.sameSize(width, height)) {
+            mask = new PixelMask(width, height);
+        }
+        return mask;
+    }
+
+    private void pushSeeds(int from, int to) {
+        boolean inRun = false;
+        for (int i = from; i <= to; i++) {
+            if (mask.get(i)) {
+                if (!inRun) {
+                    stack.push(i);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+    }
+
+    private void resetBounds() {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+        visitedCount = 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    @Override
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    @Override
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    @Override
+    public int getPeakQueueSize() {
+        return stack.getPeakSize();
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxX() {
+        return maxX;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
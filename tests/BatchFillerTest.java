@@ -0,0 +1,109 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.BatchFiller;
+import com.bosonshiggs.extendedcanvas.helpers.DeltaHistory;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import org.junit.Test;
+
+// Batch fills against one fill per seed, seed skipping and the single combined undo entry
+public class BatchFillerTest {
+    private static final int WIDTH = 83;
+    private static final int HEIGHT = 59;
+
+    private static int[] batch(int[][] points, int color) {
+        int[] seeds = new int[points.length * 3];
+        for (int i = 0; i < points.length; i++) {
+            seeds[3 * i] = points[i][0];
+            seeds[3 * i + 1] = points[i][1];
+            seeds[3 * i + 2] = color;
+        }
+        return seeds;
+    }
+
+    @Test
+    public void matchesOneFillPerSeed() {
+        int[][] points = TestCanvases.seeds(WIDTH, HEIGHT, 40, 3);
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 3);
+        int[] expected = canvas.clone();
+        ScanlineFiller filler = new ScanlineFiller();
+        int expectedCount = 0;
+        for (int[] point : points) {
+            expectedCount += filler.fill(expected, WIDTH, HEIGHT, point[0], point[1], TestCanvases.RED);
+        }
+
+        BatchFiller batch = new BatchFiller();
+        assertEquals(expectedCount, batch.fill(canvas, canvas, WIDTH, HEIGHT, batch(points, TestCanvases.RED)));
+        assertArrayEquals(expected, canvas);
+        TestCanvases.checkBounds(TestCanvases.noise(WIDTH, HEIGHT, 3), canvas, WIDTH, batch);
+    }
+
+    // A second seed in a region painted earlier in the batch, and seeds outside the buffer,
+    // are skipped even when their color differs
+    @Test
+    public void skipsCoveredAndOutsideSeeds() {
+        int[] canvas = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] seeds = {
+            1, 1, TestCanvases.RED,
+            2, 1, TestCanvases.BLACK,
+            -1, 0, TestCanvases.RED,
+            0, HEIGHT, TestCanvases.RED,
+            WIDTH, 5, TestCanvases.RED,
+        };
+        int[] expected = canvas.clone();
+        int count = new ScanlineFiller().fill(expected, WIDTH, HEIGHT, 1, 1, TestCanvases.RED);
+
+        BatchFiller batch = new BatchFiller();
+        assertEquals(count, batch.fill(canvas, canvas, WIDTH, HEIGHT, seeds));
+        assertEquals(4, batch.getSkippedCount());
+        assertArrayEquals(expected, canvas);
+
+        // The covered set starts empty on the next batch
+        assertEquals(count, batch.fill(canvas, canvas, WIDTH, HEIGHT, new int[] { 2, 1, TestCanvases.BLACK }));
+        assertEquals(0, batch.getSkippedCount());
+    }
+
+    // Regions are found in the boundary buffer and painted into the output
+    @Test
+    public void paintsFromSeparateBoundary() {
+        int[] boundary = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] canvas = new int[WIDTH * HEIGHT];
+        int[] expected = boundary.clone();
+        new ScanlineFiller().fill(expected, WIDTH, HEIGHT, 1, 1, TestCanvases.RED);
+
+        BatchFiller batch = new BatchFiller();
+        int count = batch.fill(canvas, boundary.clone(), WIDTH, HEIGHT, new int[] { 1, 1, TestCanvases.RED });
+        assertTrue(count > 0);
+        for (int i = 0; i < canvas.length; i++) {
+            boolean painted = expected[i] == TestCanvases.RED && boundary[i] != TestCanvases.RED;
+            assertEquals("pixel " + i, painted ? TestCanvases.RED : 0, canvas[i]);
+        }
+    }
+
+    // The union rectangle recorded once before the batch undoes every seed in a single step
+    @Test
+    public void oneUndoEntryRestoresTheBatch() {
+        int[][] points = TestCanvases.seeds(WIDTH, HEIGHT, 25, 4);
+        int[] original = TestCanvases.noise(WIDTH, HEIGHT, 4);
+        int[] canvas = original.clone();
+        int[] before = canvas.clone();
+
+        BatchFiller batch = new BatchFiller();
+        batch.fill(canvas, canvas, WIDTH, HEIGHT, batch(points, TestCanvases.RED));
+        assertFalse(batch.isEmpty());
+        int left = batch.getMinX(), top = batch.getMinY();
+        DeltaHistory history = new DeltaHistory(1 << 20, 10);
+        history.record(before, top * WIDTH + left, WIDTH, left, top,
+                batch.getMaxX() - left + 1, batch.getMaxY() - top + 1);
+        assertEquals(1, history.getUndoDepth());
+
+        history.undo(canvas, WIDTH);
+        assertArrayEquals(original, canvas);
+        assertFalse(history.canUndo());
+    }
+}
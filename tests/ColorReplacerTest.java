@@ -0,0 +1,88 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.ColorReplacer;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// The global replace, sequential and in parallel bands, against a per-pixel reference
+public class ColorReplacerTest {
+    private static final int WIDTH = 123;
+    private static final int HEIGHT = 77;
+
+    @Test
+    public void sequentialMatchesReference() {
+        ColorReplacer replacer = new ColorReplacer();
+        replacer.setParallelThreshold(Integer.MAX_VALUE);
+        checkAgainstReference(replacer);
+    }
+
+    @Test
+    public void parallelMatchesReference() {
+        ColorReplacer replacer = new ColorReplacer();
+        replacer.setParallelThreshold(1);
+        checkAgainstReference(replacer);
+    }
+
+    @Test
+    public void noMatchIsEmpty() {
+        ColorReplacer replacer = new ColorReplacer();
+        int[] pixels = TestCanvases.noise(WIDTH, HEIGHT, 51);
+        int[] before = pixels.clone();
+        assertEquals(0, replacer.replace(pixels, WIDTH, HEIGHT, TestCanvases.RED, TestCanvases.BLACK, 0));
+        assertTrue(replacer.isEmpty());
+        assertTrue(replacer.getMinY() > replacer.getMaxY());
+        assertArrayEquals(before, pixels);
+    }
+
+    // A match that already has the new color is not counted, and its row is not reported
+    @Test
+    public void unchangedPixelsAreNotCounted() {
+        ColorReplacer replacer = new ColorReplacer();
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, TestCanvases.GRAY);
+        pixels[5 * WIDTH + 7] = TestCanvases.WHITE;
+        pixels[9 * WIDTH + 2] = 0xFFF8F8F8;
+        assertEquals(2, replacer.replace(pixels, WIDTH, HEIGHT, TestCanvases.WHITE, TestCanvases.GRAY, 255));
+        assertEquals(5, replacer.getMinY());
+        assertEquals(9, replacer.getMaxY());
+
+        int[] before = pixels.clone();
+        assertEquals(0, replacer.replace(pixels, WIDTH, HEIGHT, TestCanvases.GRAY, TestCanvases.GRAY, 0));
+        assertTrue(replacer.isEmpty());
+        assertEquals(0, replacer.replace(pixels, WIDTH, HEIGHT, TestCanvases.GRAY, TestCanvases.GRAY, 30));
+        assertTrue(replacer.isEmpty());
+        assertArrayEquals(before, pixels);
+    }
+
+    private static void checkAgainstReference(ColorReplacer replacer) {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 52);
+        for (int tolerance : new int[] { 0, 1, 8, 127, 255 }) {
+            for (int oldColor : new int[] { TestCanvases.WHITE, TestCanvases.GRAY, TestCanvases.BLACK }) {
+                for (int newColor : new int[] { TestCanvases.RED, TestCanvases.GRAY }) {
+                    int[] expected = canvas.clone();
+                    int[] actual = canvas.clone();
+                    int count = 0, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+                    for (int i = 0; i < expected.length; i++) {
+                        if (TestCanvases.distance(expected[i], oldColor) <= tolerance && expected[i] != newColor) {
+                            expected[i] = newColor;
+                            count++;
+                            minY = Math.min(minY, i / WIDTH);
+                            maxY = Math.max(maxY, i / WIDTH);
+                        }
+                    }
+                    assertEquals(count, replacer.replace(actual, WIDTH, HEIGHT, oldColor, newColor, tolerance));
+                    assertArrayEquals(expected, actual);
+                    assertEquals(count, replacer.getReplacedCount());
+                    assertEquals(minY, replacer.getMinY());
+                    assertEquals(maxY, replacer.getMaxY());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.ArraySurface;
+import com.bosonshiggs.extendedcanvas.helpers.DeltaHistory;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+// Undo must give back every earlier state exactly and redo every later one
+public class DeltaHistoryTest {
+    private static final int WIDTH = 80;
+    private static final int HEIGHT = 50;
+    private static final int STEPS = 12;
+
+    @Test
+    public void undoAndRedoRoundTrip() {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 11), WIDTH, HEIGHT);
+        List<int[]> states = paint(history, surface);
+        checkUndoRedo(history, surface, states);
+    }
+
+    @Test
+    public void applySeveralStepsAtOnce() {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        ArraySurface surface = new ArraySurface(TestCanvases.spiral(WIDTH, HEIGHT), WIDTH, HEIGHT);
+        List<int[]> states = paint(history, surface);
+        int[] scratch = new int[WIDTH * HEIGHT];
+        assertTrue(history.apply(surface, scratch, true, 5) != null);
+        assertArrayEquals(states.get(STEPS - 5), surface.getArray());
+        history.apply(surface, scratch, true, 100);
+        assertArrayEquals(states.get(0), surface.getArray());
+        assertNull(history.apply(surface, scratch, true, 1));
+        history.apply(surface, scratch, false, STEPS);
+        assertArrayEquals(states.get(STEPS), surface.getArray());
+    }
+
+    @Test
+    public void recordingClearsRedo() {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 13), WIDTH, HEIGHT);
+        paint(history, surface);
+        history.apply(surface, new int[WIDTH * HEIGHT], true, 3);
+        assertTrue(history.canRedo());
+        history.record(surface.getArray(), 0, WIDTH, 0, 0, 4, 4);
+        assertFalse(history.canRedo());
+        assertEquals(STEPS - 2, history.getUndoDepth());
+    }
+
+    @Test
+    public void oldestStepsAreEvictedFirst() {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 5);
+        ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 14), WIDTH, HEIGHT);
+        List<int[]> states = paint(history, surface);
+        assertEquals(5, history.getUndoDepth());
+        history.apply(surface, new int[WIDTH * HEIGHT], true, 100);
+        assertArrayEquals(states.get(STEPS - 5), surface.getArray());
+    }
+
+    // A step larger than maxBytes on its own evicts the others but is kept and can be undone
+    @Test
+    public void oversizedStepIsKept() {
+        DeltaHistory history = new DeltaHistory(64, 10);
+        ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 15), WIDTH, HEIGHT);
+        List<int[]> states = paint(history, surface);
+        assertEquals(1, history.getUndoDepth());
+        assertTrue(history.getUsedBytes() > history.getMaxBytes());
+        history.apply(surface, new int[WIDTH * HEIGHT], true, 100);
+        assertArrayEquals(states.get(states.size() - 2), surface.getArray());
+    }
+
+    @Test
+    public void entriesCanBeReplaced() throws IOException {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 15), WIDTH, HEIGHT);
+        List<int[]> states = paint(history, surface);
+        history.apply(surface, new int[WIDTH * HEIGHT], true, 4);
+
+        DeltaHistory copy = new DeltaHistory(Long.MAX_VALUE, 100);
+        copy.setEntries(history.getUndoEntries(), history.getRedoEntries());
+        assertEquals(history.getUndoDepth(), copy.getUndoDepth());
+        assertEquals(history.getRedoDepth(), copy.getRedoDepth());
+        copy.apply(surface, new int[WIDTH * HEIGHT], false, 4);
+        checkUndoRedo(copy, surface, states);
+    }
+
+    // STEPS fills on the surface, each recorded first; returns the state before the first one
+    // and after each of them
+    static List<int[]> paint(DeltaHistory history, ArraySurface surface) {
+        int width = surface.getWidth(), height = surface.getHeight();
+        int[] pixels = surface.getArray();
+        List<int[]> states = new ArrayList<>();
+        states.add(pixels.clone());
+        ScanlineFiller filler = new ScanlineFiller();
+        int[][] seeds = TestCanvases.seeds(width, height, STEPS * 4, pixels.length);
+        int painted = 0;
+        for (int i = 0; painted < STEPS; i++) {
+            int[] seed = seeds[i];
+            int color = 0xFF000000 | (0x10 * (i + 1)) << 8;
+            int[] before = pixels.clone();
+            if (filler.fill(pixels, width, height, seed[0], seed[1], color) == 0) {
+                continue;
+            }
+            int x = filler.getMinX(), y = filler.getMinY();
+            history.record(before, y * width + x, width, x, y, filler.getMaxX() - x + 1, filler.getMaxY() - y + 1);
+            states.add(pixels.clone());
+            painted++;
+        }
+        return states;
+    }
+
+    static void checkUndoRedo(DeltaHistory history, ArraySurface surface, List<int[]> states) {
+        int[] pixels = surface.getArray();
+        int last = states.size() - 1;
+        assertArrayEquals(states.get(last), pixels);
+        for (int i = last - 1; i >= 0; i--) {
+            assertTrue(history.undo(pixels, surface.getWidth()) != null);
+            assertArrayEquals(states.get(i), pixels);
+        }
+        assertFalse(history.canUndo());
+        for (int i = 1; i <= last; i++) {
+            assertTrue(history.redo(pixels, surface.getWidth()) != null);
+            assertArrayEquals(states.get(i), pixels);
+        }
+        assertFalse(history.canRedo());
+    }
+}
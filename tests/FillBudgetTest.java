@@ -0,0 +1,102 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.FillBudget;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import org.junit.Test;
+
+// Cancellation by ticket, the pixel and time limits, and rolling back a stopped fill
+public class FillBudgetTest {
+    private static final int WIDTH = 71;
+    private static final int HEIGHT = 53;
+
+    // A cancel that arrives while the fill is still queued stops it when it begins
+    @Test
+    public void cancelBeforeBeginIsKept() {
+        FillBudget budget = new FillBudget();
+        long queued = budget.nextTicket();
+        budget.cancel();
+        long later = budget.nextTicket();
+
+        budget.begin(queued, 0, 0);
+        assertTrue(budget.shouldStop(1));
+        assertEquals(FillBudget.CANCELLED, budget.getStopReason());
+
+        budget.begin(later, 0, 0);
+        assertFalse(budget.shouldStop(1));
+        assertNull(budget.getStopReason());
+
+        // Without a ticket only a cancel after begin counts
+        budget.begin(0, 0);
+        assertFalse(budget.shouldStop(1));
+        budget.cancel();
+        assertTrue(budget.shouldStop(1));
+        assertTrue(budget.isStopped());
+    }
+
+    @Test
+    public void pixelLimitStops() {
+        FillBudget budget = new FillBudget();
+        budget.begin(0, 10);
+        assertFalse(budget.shouldStop(6));
+        assertFalse(budget.shouldStop(4));
+        assertTrue(budget.shouldStop(1));
+        assertEquals(FillBudget.PIXEL_LIMIT, budget.getStopReason());
+        assertTrue(budget.shouldStop(0)); // Stays stopped until the next begin
+
+        budget.begin(0, 0);
+        assertFalse(budget.shouldStop(Integer.MAX_VALUE));
+        assertFalse(budget.isStopped());
+    }
+
+    @Test
+    public void timeLimitStops() throws InterruptedException {
+        FillBudget budget = new FillBudget();
+        budget.begin(1, 0);
+        Thread.sleep(5);
+        boolean stopped = false;
+        for (int i = 0; i < 1000 && !stopped; i++) {
+            stopped = budget.shouldStop(1);
+        }
+        assertTrue(stopped);
+        assertEquals(FillBudget.TIME_LIMIT, budget.getStopReason());
+    }
+
+    // A stopped fill has painted only part of its region, all of it inside the reported
+    // bounds: putting back that rectangle from the copy taken before the fill restores the
+    // canvas, as the handler does for what was already shown
+    @Test
+    public void stoppedFillRollsBackWithinItsBounds() {
+        int[] original = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] complete = original.clone();
+        int full = new ScanlineFiller().fill(complete, WIDTH, HEIGHT, 1, 1, TestCanvases.RED);
+
+        final int[] shown = original.clone();
+        FillBudget budget = new FillBudget();
+        budget.begin(0, full / 3);
+        ScanlineFiller filler = new ScanlineFiller();
+        filler.setBudget(budget);
+        int painted = filler.fill(original.clone(), WIDTH, HEIGHT, 1, 1, TestCanvases.RED, new ScanlineFiller.SpanListener() {
+            @Override
+            public void onSpan(int y, int x0, int x1) {
+                for (int x = x0; x <= x1; x++) {
+                    shown[y * WIDTH + x] = TestCanvases.RED;
+                }
+            }
+        });
+        assertTrue(budget.isStopped());
+        assertTrue(painted > 0 && painted < full);
+
+        for (int y = filler.getMinY(); y <= filler.getMaxY(); y++) {
+            int start = y * WIDTH + filler.getMinX();
+            System.arraycopy(original, start, shown, start, filler.getMaxX() - filler.getMinX() + 1);
+        }
+        assertArrayEquals(original, shown);
+    }
+}
@@ -0,0 +1,124 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.GradientPainter;
+
+import org.junit.Test;
+
+// The fixed-point, table-driven gradients against the same gradients computed in doubles
+public class GradientPainterTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+    private static final int LEFT = 5, TOP = 10, RIGHT = 190, BOTTOM = 99;
+    private static final int COLOR_A = 0xFF102030;
+    private static final int COLOR_B = 0x80F0E0D0; // Alpha is interpolated too
+
+    @Test
+    public void linearIsWithinOneLevelOfExact() {
+        for (float angle : new float[] { 0f, 30f, 90f, 135f, 200f, 270f, -45f }) {
+            int[] out = new Region().paintLinearInto(angle);
+            double radians = Math.toRadians(angle), cos = Math.cos(radians), sin = Math.sin(radians);
+            double low = Math.min(LEFT * cos, (RIGHT + 1) * cos) + Math.min(TOP * sin, (BOTTOM + 1) * sin);
+            double high = Math.max(LEFT * cos, (RIGHT + 1) * cos) + Math.max(TOP * sin, (BOTTOM + 1) * sin);
+            for (int y = TOP; y <= BOTTOM; y++) {
+                for (int x = LEFT; x <= RIGHT; x++) {
+                    double t = ((x + 0.5) * cos + (y + 0.5) * sin - low) / (high - low);
+                    assertTrue("angle " + angle + " at " + x + "," + y, TestCanvases.distance(out[y * WIDTH + x], mix(t)) <= 1);
+                }
+            }
+        }
+    }
+
+    // The square root table is coarse for the smallest distances, hence a few levels there
+    @Test
+    public void radialIsWithinThreeLevelsOfExact() {
+        int centerX = 60, centerY = 40;
+        int[] out = new Region().paintRadialInto(centerX, centerY);
+        double far = Math.hypot(Math.max(centerX - LEFT, RIGHT - centerX), Math.max(centerY - TOP, BOTTOM - centerY));
+        for (int y = TOP; y <= BOTTOM; y++) {
+            for (int x = LEFT; x <= RIGHT; x++) {
+                double t = Math.hypot(x - centerX, y - centerY) / far;
+                assertTrue("at " + x + "," + y, TestCanvases.distance(out[y * WIDTH + x], mix(t)) <= 3);
+            }
+        }
+        assertEquals(COLOR_A, out[centerY * WIDTH + centerX]);
+        assertEquals(COLOR_B, out[BOTTOM * WIDTH + RIGHT]); // Farthest corner
+    }
+
+    // Every channel moves steadily from one color to the other, never back
+    @Test
+    public void runsMonotonicallyBetweenTheColors() {
+        for (float angle : new float[] { 0f, 180f }) {
+            int[] out = new Region().paintLinearInto(angle);
+            int row = TOP * WIDTH;
+            int first = angle == 0f ? COLOR_A : COLOR_B;
+            int last = angle == 0f ? COLOR_B : COLOR_A;
+            assertTrue(TestCanvases.distance(out[row + LEFT], first) <= 1);
+            assertTrue(TestCanvases.distance(out[row + RIGHT], last) <= 1);
+            for (int shift = 0; shift < 32; shift += 8) {
+                int direction = Integer.signum(((last >>> shift) & 0xFF) - ((first >>> shift) & 0xFF));
+                for (int x = LEFT + 1; x <= RIGHT; x++) {
+                    int change = ((out[row + x] >>> shift) & 0xFF) - ((out[row + x - 1] >>> shift) & 0xFF);
+                    assertTrue("angle " + angle + " at " + x, change * direction >= 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlyTheSpansArePainted() {
+        GradientPainter painter = new GradientPainter();
+        painter.begin(COLOR_A, COLOR_B);
+        painter.onSpan(3, 4, 9);
+        painter.onSpan(7, 0, 2);
+        int[] out = new int[WIDTH * HEIGHT];
+        painter.paintLinear(out, WIDTH, 0f);
+        int painted = 0;
+        for (int i = 0; i < out.length; i++) {
+            painted += out[i] != 0 ? 1 : 0;
+        }
+        assertEquals(9, painter.getPaintedCount());
+        assertEquals(9, painted);
+        assertEquals(0, painter.getMinX());
+        assertEquals(3, painter.getMinY());
+        assertEquals(9, painter.getMaxX());
+        assertEquals(7, painter.getMaxY());
+    }
+
+    // The rectangle LEFT..RIGHT x TOP..BOTTOM, reported as spans
+    private static final class Region {
+        final GradientPainter painter = new GradientPainter();
+
+        Region() {
+            painter.begin(COLOR_A, COLOR_B);
+            for (int y = TOP; y <= BOTTOM; y++) {
+                painter.onSpan(y, LEFT, RIGHT);
+            }
+        }
+
+        int[] paintLinearInto(float angle) {
+            int[] out = new int[WIDTH * HEIGHT];
+            painter.paintLinear(out, WIDTH, angle);
+            return out;
+        }
+
+        int[] paintRadialInto(int centerX, int centerY) {
+            int[] out = new int[WIDTH * HEIGHT];
+            painter.paintRadial(out, WIDTH, centerX, centerY);
+            return out;
+        }
+    }
+
+    // Channel-wise COLOR_A + (COLOR_B - COLOR_A) * t, rounded
+    private static int mix(double t) {
+        t = Math.max(0, Math.min(1, t));
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int a = (COLOR_A >>> shift) & 0xFF, b = (COLOR_B >>> shift) & 0xFF;
+            color |= (int) Math.round(a + (b - a) * t) << shift;
+        }
+        return color;
+    }
+}
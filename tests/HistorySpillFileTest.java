@@ -0,0 +1,178 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import com.bosonshiggs.extendedcanvas.helpers.ArraySurface;
+import com.bosonshiggs.extendedcanvas.helpers.DeltaHistory;
+import com.bosonshiggs.extendedcanvas.helpers.HistorySpillFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Steps written to the spill file come back unchanged, and a file is only reopened for the
+// drawing it was flushed with
+public class HistorySpillFileTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("spill", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void pushedEntriesComeBackNewestFirst() throws IOException {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        DeltaHistoryTest.paint(history, new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 21), WIDTH, HEIGHT));
+        List<DeltaHistory.Entry> entries = history.getUndoEntries();
+
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.NO_CHECKSUM);
+        try {
+            for (DeltaHistory.Entry entry : entries) {
+                spill.push(entry);
+            }
+            assertEquals(entries.size(), spill.size());
+            for (int i = 0; i < entries.size(); i++) {
+                assertSameRectangle(entries.get(i), spill.get(i));
+            }
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                assertSameRectangle(entries.get(i), spill.pop());
+            }
+            assertEquals(0, spill.size());
+            assertNull(spill.pop());
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void undoAndRedoThroughTheFile() throws IOException {
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.NO_CHECKSUM);
+        try {
+            DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+            history.setSpill(spill, 2);
+            ArraySurface surface = new ArraySurface(TestCanvases.noise(WIDTH, HEIGHT, 20), WIDTH, HEIGHT);
+            List<int[]> states = DeltaHistoryTest.paint(history, surface);
+            assertEquals(states.size() - 1 - 2, history.getSpilledDepth());
+            DeltaHistoryTest.checkUndoRedo(history, surface, states);
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void reopenedForTheSameDrawing() throws IOException {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 22);
+        ArraySurface surface = new ArraySurface(canvas, WIDTH, HEIGHT);
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.NO_CHECKSUM);
+        history.setSpill(spill, 1);
+        List<int[]> states = DeltaHistoryTest.paint(history, surface);
+        history.spillAll();
+        long checksum = HistorySpillFile.checksum(canvas, canvas.length);
+        spill.setChecksum(checksum);
+        spill.close();
+
+        // Next run of the app: same drawing, so every step can still be undone
+        spill = HistorySpillFile.open(file, WIDTH, HEIGHT, checksum);
+        try {
+            assertEquals(states.size() - 1, spill.size());
+            DeltaHistory resumed = new DeltaHistory(Long.MAX_VALUE, 100);
+            resumed.setSpill(spill, 1);
+            int[] pixels = canvas.clone();
+            for (int i = states.size() - 2; i >= 0; i--) {
+                resumed.undo(pixels, WIDTH);
+                assertArrayEquals(states.get(i), pixels);
+            }
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void discardedForAnotherDrawing() throws IOException {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 23);
+        flush(canvas);
+        int[] other = canvas.clone();
+        other[WIDTH * HEIGHT / 2] ^= 0x00010101;
+
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.checksum(other, other.length));
+        try {
+            assertEquals(0, spill.size());
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void discardedWithoutChecksumOrAfterAChange() throws IOException {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 24);
+        long checksum = flush(canvas);
+
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.NO_CHECKSUM);
+        spill.close();
+        spill = HistorySpillFile.open(file, WIDTH, HEIGHT, checksum);
+        try {
+            assertEquals(0, spill.size());
+        } finally {
+            spill.close();
+        }
+
+        // A step taken after the flush makes the stored checksum stale
+        checksum = flush(canvas);
+        spill = HistorySpillFile.open(file, WIDTH, HEIGHT, checksum);
+        spill.pop();
+        spill.close();
+        spill = HistorySpillFile.open(file, WIDTH, HEIGHT, checksum);
+        try {
+            assertEquals(0, spill.size());
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void checksumNeverEqualsNoChecksum() {
+        assertNotEquals(HistorySpillFile.NO_CHECKSUM, HistorySpillFile.checksum(new int[0], 0));
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 25);
+        int[] other = canvas.clone();
+        other[0] = ~other[0];
+        assertNotEquals(HistorySpillFile.checksum(canvas, canvas.length), HistorySpillFile.checksum(other, other.length));
+    }
+
+    // Paints a few steps, spills them all and stamps the file with the drawing's checksum
+    private long flush(int[] canvas) throws IOException {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        HistorySpillFile spill = HistorySpillFile.open(file, WIDTH, HEIGHT, HistorySpillFile.NO_CHECKSUM);
+        history.setSpill(spill, 1);
+        DeltaHistoryTest.paint(history, new ArraySurface(canvas, WIDTH, HEIGHT));
+        history.spillAll();
+        long checksum = HistorySpillFile.checksum(canvas, canvas.length);
+        spill.setChecksum(checksum);
+        spill.close();
+        return checksum;
+    }
+
+    private static void assertSameRectangle(DeltaHistory.Entry expected, DeltaHistory.Entry actual) {
+        assertEquals(expected.getX(), actual.getX());
+        assertEquals(expected.getY(), actual.getY());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.byteSize(), actual.byteSize());
+    }
+}
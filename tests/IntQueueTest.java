@@ -0,0 +1,72 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bosonshiggs.extendedcanvas.helpers.IntQueue;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+// The ring buffer against ArrayDeque, across growth and wrap-around, and its size bound
+public class IntQueueTest {
+
+    @Test
+    public void keepsFifoOrderWhileGrowingAndWrapping() {
+        Random random = new Random(71);
+        IntQueue queue = new IntQueue(16);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        int peak = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (expected.isEmpty() || random.nextInt(3) != 0) {
+                queue.add(i);
+                expected.addLast(i);
+                peak = Math.max(peak, expected.size());
+            } else {
+                assertEquals((int) expected.pollFirst(), queue.poll());
+            }
+            assertEquals(expected.size(), queue.size());
+        }
+        assertEquals(peak, queue.getPeakSize());
+        while (!expected.isEmpty()) {
+            assertEquals((int) expected.pollFirst(), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void refusesToGrowPastMaxSize() {
+        IntQueue queue = new IntQueue();
+        queue.setMaxSize(100);
+        for (int i = 0; i < 100; i++) {
+            queue.add(i);
+        }
+        try {
+            queue.add(100);
+            fail("Queue grew past its limit");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(100, queue.size());
+
+        // The bound is on what is queued at once, not on the total
+        queue.poll();
+        queue.add(100);
+        assertEquals(100, queue.size());
+    }
+
+    @Test
+    public void clearResetsSizeAndPeak() {
+        IntQueue queue = new IntQueue();
+        for (int i = 0; i < 50; i++) {
+            queue.add(i);
+        }
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getPeakSize());
+        queue.add(7);
+        assertEquals(7, queue.poll());
+    }
+}
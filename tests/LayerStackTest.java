@@ -0,0 +1,128 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.LayerStack;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// Layer removal, dirty tracking, and composition with source-over and layer opacity
+public class LayerStackTest {
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 7;
+    private static final int SIZE = WIDTH * HEIGHT;
+
+    private static void paint(LayerStack stack, LayerStack.Layer layer, int color) {
+        int[] pixels = new int[SIZE];
+        Arrays.fill(pixels, color);
+        stack.surface(layer).setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+    }
+
+    private static int composeOne(LayerStack stack) {
+        int[] out = new int[SIZE];
+        stack.compose(out, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return out[0];
+    }
+
+    @Test
+    public void removeShiftsTheLayersAbove() {
+        LayerStack stack = new LayerStack();
+        stack.reset(WIDTH, HEIGHT);
+        paint(stack, stack.add("a"), TestCanvases.WHITE);
+        paint(stack, stack.add("b"), TestCanvases.RED);
+        LayerStack.Layer c = stack.add("c");
+        paint(stack, c, TestCanvases.BLACK);
+        stack.takeDirty();
+
+        assertTrue(stack.remove("b"));
+        assertFalse(stack.remove("b"));
+        assertEquals(Arrays.asList("a", "c"), stack.names());
+        assertEquals(1, c.getSlot());
+        assertEquals(HEIGHT, stack.rowOffset(c));
+        assertEquals(2L * 4 * SIZE, stack.byteSize());
+        int[] pixels = new int[SIZE];
+        stack.surface(c).getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        for (int pixel : pixels) {
+            assertEquals(TestCanvases.BLACK, pixel);
+        }
+        assertArrayEquals(new int[] { 0, 0, WIDTH, HEIGHT }, stack.takeDirty());
+    }
+
+    // Nothing is left to compose, so nothing is dirty: the Canvas keeps the last composition
+    @Test
+    public void removingTheLastLayerLeavesNothingDirty() {
+        LayerStack stack = new LayerStack();
+        stack.reset(WIDTH, HEIGHT);
+        paint(stack, stack.add("a"), TestCanvases.RED);
+        stack.markDirty(1, 1, 3, 3);
+        assertTrue(stack.remove("a"));
+        assertTrue(stack.isEmpty());
+        assertNull(stack.takeDirty());
+        assertNull(stack.top());
+    }
+
+    @Test
+    public void composeTouchesOnlyTheRectangle() {
+        LayerStack stack = new LayerStack();
+        stack.reset(WIDTH, HEIGHT);
+        paint(stack, stack.add("a"), TestCanvases.RED);
+        int[] out = new int[SIZE];
+        Arrays.fill(out, TestCanvases.GRAY);
+        stack.compose(out, WIDTH, 2, 3, 4, 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean inside = x >= 2 && x < 6 && y >= 3 && y < 5;
+                assertEquals(x + "," + y, inside ? TestCanvases.RED : TestCanvases.GRAY, out[y * WIDTH + x]);
+            }
+        }
+    }
+
+    @Test
+    public void hiddenAndTransparentLayersAreSkipped() {
+        LayerStack stack = new LayerStack();
+        stack.reset(WIDTH, HEIGHT);
+        paint(stack, stack.add("a"), TestCanvases.WHITE);
+        LayerStack.Layer b = stack.add("b");
+        paint(stack, b, TestCanvases.RED);
+        assertEquals(TestCanvases.RED, composeOne(stack));
+
+        stack.setVisible(b, false);
+        assertEquals(TestCanvases.WHITE, composeOne(stack));
+        stack.setVisible(b, true);
+        stack.setOpacity(b, 0);
+        assertEquals(TestCanvases.WHITE, composeOne(stack));
+        stack.setOpacity(b, 400); // Clamped to 255
+        assertEquals(255, b.getOpacity());
+        assertEquals(TestCanvases.RED, composeOne(stack));
+    }
+
+    // Source-over: layer opacity and pixel alpha scale the source the same way
+    @Test
+    public void blendsSourceOver() {
+        LayerStack stack = new LayerStack();
+        stack.reset(WIDTH, HEIGHT);
+        LayerStack.Layer a = stack.add("a");
+        LayerStack.Layer b = stack.add("b");
+        paint(stack, a, TestCanvases.WHITE);
+        paint(stack, b, TestCanvases.RED);
+        stack.setOpacity(b, 128);
+        assertEquals(0xFFFF7F7F, composeOne(stack));
+
+        stack.setOpacity(b, 255);
+        paint(stack, b, 0x80FF0000);
+        assertEquals(0xFFFF7F7F, composeOne(stack));
+
+        // Over transparent the color is kept and only the alpha is scaled
+        paint(stack, a, 0);
+        stack.setOpacity(b, 128);
+        assertEquals(0x40FF0000, composeOne(stack));
+        paint(stack, b, TestCanvases.RED);
+        assertEquals(0x80FF0000, composeOne(stack));
+    }
+}
@@ -0,0 +1,50 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.bosonshiggs.extendedcanvas.helpers.ParallelFiller;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+// The tiled fill must paint exactly what the sequential one paints. Small tiles make the
+// regions cross tile borders in every direction, many times.
+public class ParallelFillerTest {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    @Test
+    public void matchesReferenceAcrossTiles() {
+        TestCanvases.checkAgainstReference(new ParallelFiller(8), TestCanvases.noise(WIDTH, HEIGHT, 2), WIDTH, HEIGHT);
+        TestCanvases.checkAgainstReference(new ParallelFiller(8), TestCanvases.spiral(WIDTH, HEIGHT), WIDTH, HEIGHT);
+        TestCanvases.checkAgainstReference(new ParallelFiller(), TestCanvases.spiral(WIDTH, HEIGHT), WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void matchesScanline() {
+        int[] canvas = TestCanvases.noise(300, 200, 3);
+        for (int[] seed : TestCanvases.seeds(300, 200, 20, 3)) {
+            int[] expected = canvas.clone();
+            int[] actual = canvas.clone();
+            int count = new ScanlineFiller().fill(expected, 300, 200, seed[0], seed[1], TestCanvases.RED);
+            assertEquals(count, new ParallelFiller(16).fill(actual, 300, 200, seed[0], seed[1], TestCanvases.RED));
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    // The pool belongs to the caller, which may shut it down
+    @Test
+    public void runsOnTheCallersPool() {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ParallelFiller filler = new ParallelFiller(8);
+            filler.setPool(pool);
+            TestCanvases.checkAgainstReference(filler, TestCanvases.noise(WIDTH, HEIGHT, 4), WIDTH, HEIGHT);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.bosonshiggs.extendedcanvas.helpers.PatternPainter;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import org.junit.Test;
+
+// The tile is anchored to the canvas origin and its transparent pixels keep what was underneath
+public class PatternPainterTest {
+    private static final int WIDTH = 53;
+    private static final int HEIGHT = 41;
+
+    @Test
+    public void spansReadTheTileAtCanvasCoordinates() {
+        int tileWidth = 5, tileHeight = 3;
+        int[] tile = new int[tileWidth * tileHeight + 7]; // Longer, as pooled arrays are
+        for (int i = 0; i < tileWidth * tileHeight; i++) {
+            tile[i] = i % 4 == 0 ? 0x00000000 : 0xFF000000 | (i * 0x101010);
+        }
+        int[] canvas = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] before = canvas.clone();
+        PatternPainter painter = new PatternPainter();
+        painter.begin(canvas, WIDTH, tile, tileWidth, tileHeight);
+        // The filler walks a copy, so only the painter writes into canvas
+        int count = new ScanlineFiller().fill(before.clone(), WIDTH, HEIGHT, 1, 1, TestCanvases.RED, painter);
+
+        int[] region = before.clone();
+        new ScanlineFiller().fill(region, WIDTH, HEIGHT, 1, 1, TestCanvases.RED);
+        int[] expected = before.clone();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int i = 0; i < expected.length; i++) {
+            if (region[i] == before[i]) {
+                continue;
+            }
+            int x = i % WIDTH, y = i / WIDTH;
+            int color = tile[(y % tileHeight) * tileWidth + x % tileWidth];
+            if ((color >>> 24) != 0) {
+                expected[i] = color;
+            }
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        assertArrayEquals(expected, canvas);
+        assertEquals(count, painter.getPaintedCount());
+        assertEquals(minX, painter.getMinX());
+        assertEquals(minY, painter.getMinY());
+        assertEquals(maxX, painter.getMaxX());
+        assertEquals(maxY, painter.getMaxY());
+    }
+
+    @Test
+    public void invalidTileIsRejected() {
+        PatternPainter painter = new PatternPainter();
+        try {
+            painter.begin(new int[WIDTH * HEIGHT], WIDTH, new int[5], 3, 2);
+            fail("Tile shorter than 3x2 was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void builtInTiles() {
+        int on = TestCanvases.BLACK, off = TestCanvases.WHITE;
+        int[] checker = PatternPainter.createTile(PatternPainter.CHECKER, 4, on, off);
+        assertArrayEquals(new int[] {
+                on, on, off, off,
+                on, on, off, off,
+                off, off, on, on,
+                off, off, on, on }, checker);
+        int[] hatch = PatternPainter.createTile(PatternPainter.HATCH, 3, on, off);
+        assertArrayEquals(new int[] {
+                on, off, off,
+                off, off, on,
+                off, on, off }, hatch);
+        // Crosshatch is hatch plus its mirror image
+        int[] cross = PatternPainter.createTile(PatternPainter.CROSSHATCH, 6, on, off);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 6; x++) {
+                assertEquals(cross[y * 6 + x] == on, (x + y) % 6 == 0 || (x - y + 6) % 6 == 0);
+            }
+        }
+        int[] dots = PatternPainter.createTile(PatternPainter.DOTS, 8, on, off);
+        assertEquals(on, dots[4 * 8 + 4]);
+        assertEquals(off, dots[0]);
+        assertEquals(4, PatternPainter.createTile(PatternPainter.CHECKER, 1, on, off).length); // At least 2x2
+        try {
+            PatternPainter.createTile("stripes", 4, on, off);
+            fail("Unknown pattern was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import com.bosonshiggs.extendedcanvas.helpers.PixelMask;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+// PixelMask against java.util.BitSet, on a size that is not a multiple of 64
+public class PixelMaskTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    private static final int SIZE = WIDTH * HEIGHT;
+
+    @Test
+    public void rangesMatchBitSet() {
+        Random random = new Random(41);
+        PixelMask mask = new PixelMask(WIDTH, HEIGHT);
+        BitSet expected = new BitSet(SIZE);
+        for (int i = 0; i < 500; i++) {
+            int from = random.nextInt(SIZE + 1);
+            int to = from + random.nextInt(SIZE - from + 1);
+            if (random.nextBoolean()) {
+                mask.setRange(from, to);
+                expected.set(from, to);
+            } else {
+                mask.clearRange(from, to);
+                expected.clear(from, to);
+            }
+            assertSame(expected, mask);
+        }
+        mask.clearAll();
+        assertSame(new BitSet(SIZE), mask);
+    }
+
+    @Test
+    public void booleanOperationsMatchBitSet() {
+        for (int seed = 0; seed < 20; seed++) {
+            BitSet a = randomBits(seed), b = randomBits(seed + 100);
+            checkOperation(a, b, 0);
+            checkOperation(a, b, 1);
+            checkOperation(a, b, 2);
+        }
+    }
+
+    @Test
+    public void runsCoverExactlyTheSetBits() {
+        BitSet expected = randomBits(42);
+        PixelMask mask = toMask(expected);
+        BitSet walked = new BitSet(SIZE);
+        for (int start = mask.nextSetBit(0); start >= 0; start = mask.nextSetBit(mask.nextClearBit(start))) {
+            int end = mask.nextClearBit(start);
+            assertEquals(expected.nextClearBit(start) < SIZE ? expected.nextClearBit(start) : SIZE, end);
+            walked.set(start, end);
+        }
+        assertEquals(expected, walked);
+        assertEquals(expected.cardinality(), mask.cardinality());
+    }
+
+    @Test
+    public void fullMaskEndsAtSize() {
+        PixelMask mask = new PixelMask(WIDTH, HEIGHT);
+        mask.setRange(0, SIZE);
+        assertEquals(SIZE, mask.cardinality());
+        assertEquals(SIZE, mask.nextClearBit(0));
+        assertEquals(-1, new PixelMask(WIDTH, HEIGHT).nextSetBit(0));
+    }
+
+    // 0 = or, 1 = and, 2 = and not
+    private static void checkOperation(BitSet a, BitSet b, int operation) {
+        PixelMask mask = new PixelMask(WIDTH, HEIGHT);
+        mask.copyFrom(toMask(a));
+        BitSet expected = (BitSet) a.clone();
+        if (operation == 0) {
+            mask.or(toMask(b));
+            expected.or(b);
+        } else if (operation == 1) {
+            mask.and(toMask(b));
+            expected.and(b);
+        } else {
+            mask.andNot(toMask(b));
+            expected.andNot(b);
+        }
+        assertSame(expected, mask);
+    }
+
+    private static BitSet randomBits(long seed) {
+        Random random = new Random(seed);
+        BitSet bits = new BitSet(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            if (random.nextInt(3) == 0) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private static PixelMask toMask(BitSet bits) {
+        PixelMask mask = new PixelMask(WIDTH, HEIGHT);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            mask.set(i);
+        }
+        return mask;
+    }
+
+    private static void assertSame(BitSet expected, PixelMask mask) {
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals("bit " + i, expected.get(i), mask.get(i));
+        }
+        assertEquals(expected.cardinality(), mask.cardinality());
+    }
+}
@@ -0,0 +1,84 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.RegionLabels;
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// A fill through the region cache must paint what a traversal paints, as long as the cache is valid
+public class RegionLabelsTest {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    // The cache is rebuilt before each fill, as the handler does after an invalidation
+    @Test
+    public void matchesScanline() {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 6);
+        RegionLabels labels = new RegionLabels();
+        for (int[] seed : TestCanvases.seeds(WIDTH, HEIGHT, 30, 6)) {
+            labels.build(canvas, WIDTH, HEIGHT);
+            assertTrue(labels.isValidFor(WIDTH, HEIGHT));
+            assertTrue(labels.matches(canvas, seed[0], seed[1]));
+            int[] expected = canvas.clone();
+            int count = new ScanlineFiller().fill(expected, WIDTH, HEIGHT, seed[0], seed[1], TestCanvases.RED);
+            if (count > 0) {
+                assertEquals(count, labels.regionSize(seed[0], seed[1]));
+            }
+            assertEquals(count, labels.fill(canvas, WIDTH, HEIGHT, seed[0], seed[1], TestCanvases.RED));
+            assertArrayEquals(expected, canvas);
+        }
+    }
+
+    // A valid cache keeps answering correctly over a series of fills without a rebuild
+    @Test
+    public void staysCorrectWhileValid() {
+        int[] canvas = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] expected = canvas.clone();
+        RegionLabels labels = new RegionLabels();
+        labels.build(canvas, WIDTH, HEIGHT);
+        int[] colors = { TestCanvases.RED, TestCanvases.GRAY, TestCanvases.WHITE };
+        int[][] seeds = TestCanvases.seeds(WIDTH, HEIGHT, 30, 7);
+        for (int i = 0; i < seeds.length && labels.isValid(); i++) {
+            int[] seed = seeds[i];
+            if (!labels.matches(canvas, seed[0], seed[1])) {
+                continue;
+            }
+            int color = colors[i % colors.length];
+            new ScanlineFiller().fill(expected, WIDTH, HEIGHT, seed[0], seed[1], color);
+            labels.fill(canvas, WIDTH, HEIGHT, seed[0], seed[1], color);
+            assertArrayEquals(expected, canvas);
+        }
+    }
+
+    // Filling a region with the color of a neighbour merges the two, which the cache cannot describe
+    @Test
+    public void mergeInvalidates() {
+        int[] canvas = new int[4 * 3];
+        Arrays.fill(canvas, TestCanvases.WHITE);
+        canvas[1] = canvas[5] = canvas[9] = TestCanvases.BLACK; // Column 1 splits the white
+        RegionLabels labels = new RegionLabels();
+        labels.build(canvas, 4, 3);
+        assertEquals(3, labels.getRegionCount());
+        labels.fill(canvas, 4, 3, 1, 0, TestCanvases.WHITE);
+        assertFalse(labels.isValid());
+    }
+
+    @Test
+    public void changedPixelsNoLongerMatch() {
+        int[] canvas = TestCanvases.spiral(WIDTH, HEIGHT);
+        RegionLabels labels = new RegionLabels();
+        labels.build(canvas, WIDTH, HEIGHT);
+        assertTrue(labels.matches(canvas, 1, 1));
+        canvas[WIDTH + 2] = TestCanvases.RED;
+        assertFalse(labels.matches(canvas, 1, 1));
+        labels.invalidate();
+        assertEquals(-1, labels.regionSize(1, 1));
+    }
+}
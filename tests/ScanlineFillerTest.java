@@ -0,0 +1,56 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.bosonshiggs.extendedcanvas.helpers.ScanlineFiller;
+
+import org.junit.Test;
+
+// The span fill against the reference breadth-first flood fill
+public class ScanlineFillerTest {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    @Test
+    public void matchesReference() {
+        TestCanvases.checkAgainstReference(new ScanlineFiller(), TestCanvases.noise(WIDTH, HEIGHT, 1), WIDTH, HEIGHT);
+        TestCanvases.checkAgainstReference(new ScanlineFiller(), TestCanvases.spiral(WIDTH, HEIGHT), WIDTH, HEIGHT);
+    }
+
+    // Every painted pixel is reported exactly once, in a span of the new color
+    @Test
+    public void spansCoverThePaintedPixelsOnce() {
+        final int[] canvas = TestCanvases.spiral(WIDTH, HEIGHT);
+        int[] before = canvas.clone();
+        final int[] reported = new int[WIDTH * HEIGHT];
+        int count = new ScanlineFiller().fill(canvas, WIDTH, HEIGHT, 1, 1, TestCanvases.RED, new ScanlineFiller.SpanListener() {
+            @Override
+            public void onSpan(int y, int x0, int x1) {
+                for (int x = x0; x <= x1; x++) {
+                    reported[y * WIDTH + x]++;
+                }
+            }
+        });
+        int changed = 0;
+        for (int i = 0; i < canvas.length; i++) {
+            boolean painted = canvas[i] != before[i];
+            assertEquals("pixel " + i, painted ? 1 : 0, reported[i]);
+            changed += painted ? 1 : 0;
+        }
+        assertEquals(changed, count);
+    }
+
+    @Test
+    public void sameColorOrOutsideSeedPaintsNothing() {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 2);
+        int[] before = canvas.clone();
+        ScanlineFiller filler = new ScanlineFiller();
+        assertEquals(0, filler.fill(canvas, WIDTH, HEIGHT, 3, 4, canvas[4 * WIDTH + 3]));
+        assertEquals(0, filler.fill(canvas, WIDTH, HEIGHT, -1, 0, TestCanvases.RED));
+        assertEquals(0, filler.fill(canvas, WIDTH, HEIGHT, WIDTH, 0, TestCanvases.RED));
+        assertArrayEquals(before, canvas);
+        assertFalse(filler.fill(canvas, WIDTH, HEIGHT, 0, 0, TestCanvases.RED) == 0);
+    }
+}
@@ -0,0 +1,151 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.bosonshiggs.extendedcanvas.helpers.ArraySurface;
+import com.bosonshiggs.extendedcanvas.helpers.DeltaHistory;
+import com.bosonshiggs.extendedcanvas.helpers.SessionFile;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// A saved session restores the pixels and the whole undo/redo history, compressed or not
+public class SessionFileTest {
+    private static final int WIDTH = 90;
+    private static final int HEIGHT = 40;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("session", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        checkRoundTrip(false);
+    }
+
+    @Test
+    public void roundTripCompressed() throws IOException {
+        checkRoundTrip(true);
+    }
+
+    @Test
+    public void otherSizeIsRejected() throws IOException {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 31);
+        DeltaHistoryTest.paint(history, new ArraySurface(canvas, WIDTH, HEIGHT));
+        SessionFile.write(file, canvas, WIDTH, HEIGHT, history, true);
+
+        DeltaHistory other = new DeltaHistory(Long.MAX_VALUE, 100);
+        other.record(canvas, 0, WIDTH, 0, 0, 2, 2);
+        try {
+            SessionFile.read(file, new int[WIDTH * (HEIGHT + 1)], WIDTH, HEIGHT + 1, other);
+            fail("Session of another size was read");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, other.getUndoDepth()); // Untouched
+    }
+
+    // Run-length entries whose runs would not decode to exactly w pixels per row are rejected
+    @Test
+    public void corruptedRunsAreRejected() throws IOException {
+        int[][] corrupted = {
+            { 4, TestCanvases.RED, 4 }, // Odd length
+            { 4, TestCanvases.RED, 0, TestCanvases.RED, 4, TestCanvases.RED }, // Empty run
+            { -1, TestCanvases.RED, 5, TestCanvases.RED, 4, TestCanvases.RED }, // Negative run
+            { 3, TestCanvases.RED, 3, TestCanvases.RED, 2, TestCanvases.RED }, // Run across a row end
+            { 4, TestCanvases.RED }, // One row short
+            { 2, TestCanvases.RED, 2, TestCanvases.RED, 3, TestCanvases.RED }, // Last row short
+        };
+        for (int[] runs : corrupted) {
+            writeSession(runs);
+            DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+            try {
+                SessionFile.read(file, new int[4 * 2], 4, 2, history);
+                fail("Corrupted runs were read: " + Arrays.toString(runs));
+            } catch (IOException expected) {
+                assertEquals("Corrupted session history", expected.getMessage());
+            }
+            assertEquals(0, history.getUndoDepth());
+        }
+
+        writeSession(new int[] { 1, TestCanvases.RED, 3, TestCanvases.BLACK, 4, TestCanvases.GRAY });
+        int[] pixels = new int[4 * 2];
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        SessionFile.read(file, pixels, 4, 2, history);
+        history.undo(pixels, 4);
+        assertArrayEquals(new int[] {
+            TestCanvases.RED, TestCanvases.BLACK, TestCanvases.BLACK, TestCanvases.BLACK,
+            TestCanvases.GRAY, TestCanvases.GRAY, TestCanvases.GRAY, TestCanvases.GRAY,
+        }, pixels);
+    }
+
+    // Uncompressed session of a 4 x 2 white canvas with one run-length undo entry over all of it
+    private void writeSession(int[] runs) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x4543534E); // "ECSN"
+            out.writeInt(1);
+            out.writeInt(4);
+            out.writeInt(2);
+            out.writeInt(0);
+            for (int i = 0; i < 4 * 2; i++) {
+                out.writeInt(TestCanvases.WHITE);
+            }
+            out.writeInt(1);
+            out.writeInt(0);
+            int[] entry = { 0, 0, 4, 2, 0, runs.length };
+            for (int value : entry) {
+                out.writeInt(value);
+            }
+            for (int value : runs) {
+                out.writeInt(value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkRoundTrip(boolean compress) throws IOException {
+        DeltaHistory history = new DeltaHistory(Long.MAX_VALUE, 100);
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, compress ? 32 : 33);
+        ArraySurface surface = new ArraySurface(canvas, WIDTH, HEIGHT);
+        List<int[]> states = DeltaHistoryTest.paint(history, surface);
+        history.apply(surface, new int[WIDTH * HEIGHT], true, 3); // Leave some redo steps
+        SessionFile.write(file, canvas, WIDTH, HEIGHT, history, compress);
+
+        int[] pixels = new int[WIDTH * HEIGHT];
+        DeltaHistory restored = new DeltaHistory(Long.MAX_VALUE, 100);
+        SessionFile.read(file, pixels, WIDTH, HEIGHT, restored);
+        assertArrayEquals(canvas, pixels);
+        assertEquals(history.getUndoDepth(), restored.getUndoDepth());
+        assertEquals(history.getRedoDepth(), restored.getRedoDepth());
+
+        int current = states.size() - 1 - 3;
+        for (int i = current - 1; i >= 0; i--) {
+            restored.undo(pixels, WIDTH);
+            assertArrayEquals(states.get(i), pixels);
+        }
+        for (int i = 1; i < states.size(); i++) {
+            restored.redo(pixels, WIDTH);
+            assertArrayEquals(states.get(i), pixels);
+        }
+    }
+}
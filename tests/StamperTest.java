@@ -0,0 +1,108 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.Stamper;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// Discs stamped along spans, squares and points against plain per-pixel drawing
+public class StamperTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int COLOR = TestCanvases.RED;
+
+    @Test
+    public void spanStampsTheUnionOfDiscs() {
+        for (float radius : new float[] { 0f, 1f, 2.5f, 4f, 7.9f }) {
+            int[] actual = blank();
+            Stamper stamper = new Stamper();
+            stamper.begin(actual, WIDTH, HEIGHT, COLOR, radius);
+            // Near the borders too, so the discs are clipped
+            int[][] spans = { { 10, 5, 20 }, { 0, 0, 3 }, { 29, 35, 39 }, { 15, 12, 12 } };
+            int[] expected = blank();
+            for (int[] span : spans) {
+                stamper.onSpan(span[0], span[1], span[2]);
+                for (int x = span[1]; x <= span[2]; x++) {
+                    disc(expected, x, span[0], radius);
+                }
+            }
+            assertArrayEquals("radius " + radius, expected, actual);
+            checkBounds(expected, stamper);
+        }
+    }
+
+    @Test
+    public void squaresAndPoints() {
+        int[] actual = blank();
+        Stamper stamper = new Stamper();
+        stamper.begin(actual, WIDTH, HEIGHT, COLOR, 0f);
+        stamper.square(5, 5, 2);
+        stamper.square(38, 1, 3); // Clipped at the top right corner
+        stamper.point(20, 25);
+        stamper.point(-1, 25); // Outside: nothing
+
+        int[] expected = blank();
+        for (int y = 3; y <= 7; y++) {
+            for (int x = 3; x <= 7; x++) {
+                expected[y * WIDTH + x] = COLOR;
+            }
+        }
+        for (int y = 0; y <= 4; y++) {
+            for (int x = 35; x < WIDTH; x++) {
+                expected[y * WIDTH + x] = COLOR;
+            }
+        }
+        expected[25 * WIDTH + 20] = COLOR;
+        assertArrayEquals(expected, actual);
+        assertEquals(25 + 5 * 5 + 1, stamper.getStampedCount());
+        checkBounds(expected, stamper);
+    }
+
+    @Test
+    public void nothingStampedIsEmpty() {
+        Stamper stamper = new Stamper();
+        stamper.begin(blank(), WIDTH, HEIGHT, COLOR, 3f);
+        stamper.point(WIDTH, 0);
+        assertTrue(stamper.isEmpty());
+        assertEquals(0, stamper.getStampedCount());
+    }
+
+    private static int[] blank() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, TestCanvases.WHITE);
+        return pixels;
+    }
+
+    // Every pixel within radius of (cx, cy)
+    private static void disc(int[] pixels, int cx, int cy, float radius) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int dx = x - cx, dy = y - cy;
+                if (dx * dx + dy * dy <= radius * radius) {
+                    pixels[y * WIDTH + x] = COLOR;
+                }
+            }
+        }
+    }
+
+    private static void checkBounds(int[] expected, Stamper stamper) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == COLOR) {
+                minX = Math.min(minX, i % WIDTH);
+                maxX = Math.max(maxX, i % WIDTH);
+                minY = Math.min(minY, i / WIDTH);
+                maxY = Math.max(maxY, i / WIDTH);
+            }
+        }
+        assertEquals(minX, stamper.getMinX());
+        assertEquals(minY, stamper.getMinY());
+        assertEquals(maxX, stamper.getMaxX());
+        assertEquals(maxY, stamper.getMaxY());
+    }
+}
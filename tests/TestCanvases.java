@@ -0,0 +1,142 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bosonshiggs.extendedcanvas.helpers.RegionFiller;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Deterministic canvases and plain reference implementations the helpers are checked against.
+// The references are the obvious pixel-by-pixel versions: slow, but easy to trust.
+final class TestCanvases {
+    static final int WHITE = 0xFFFFFFFF;
+    static final int BLACK = 0xFF000000;
+    static final int GRAY = 0xFF808080;
+    static final int RED = 0xFFFF0000;
+
+    private TestCanvases() {
+    }
+
+    // White field sprinkled with black, gray and near-white pixels: one large region that
+    // wanders across the whole canvas plus many small ones
+    static int[] noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] palette = { BLACK, GRAY, 0xFFF8F8F8 };
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(100) < 35 ? palette[random.nextInt(palette.length)] : WHITE;
+        }
+        return pixels;
+    }
+
+    // Square spiral of black walls on white with 2 px corridors: one region that crosses
+    // every tile border of a small tile size many times
+    static int[] spiral(int width, int height) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, WHITE);
+        int left = 0, top = 0, right = width - 1, bottom = height - 1;
+        while (left <= right && top <= bottom) {
+            for (int x = left; x <= right; x++) pixels[top * width + x] = BLACK;
+            for (int y = top; y <= bottom; y++) pixels[y * width + right] = BLACK;
+            for (int x = left; x <= right; x++) pixels[bottom * width + x] = BLACK;
+            for (int y = top + 3; y <= bottom; y++) pixels[y * width + left] = BLACK;
+            left += 3;
+            top += 3;
+            right -= 3;
+            bottom -= 3;
+        }
+        return pixels;
+    }
+
+    // 4-connected flood fill of the seed's exact color; returns the number of pixels painted
+    static int referenceFill(int[] pixels, int width, int height, int x, int y, int newColor) {
+        return referenceToleranceFill(pixels, width, height, x, y, newColor, 0);
+    }
+
+    // 4-connected fill of every pixel whose largest channel difference to the seed color
+    // is at most tolerance
+    static int referenceToleranceFill(int[] pixels, int width, int height, int x, int y, int newColor, int tolerance) {
+        int target = pixels[y * width + x];
+        if (tolerance == 0 && target == newColor) {
+            return 0;
+        }
+        boolean[] seen = new boolean[width * height];
+        int[] queue = new int[width * height];
+        int head = 0, tail = 0;
+        queue[tail++] = y * width + x;
+        seen[y * width + x] = true;
+        while (head < tail) {
+            int index = queue[head++];
+            int px = index % width, py = index / width;
+            int[] neighbours = {
+                    px > 0 ? index - 1 : -1, px < width - 1 ? index + 1 : -1,
+                    py > 0 ? index - width : -1, py < height - 1 ? index + width : -1 };
+            for (int n : neighbours) {
+                if (n >= 0 && !seen[n] && distance(pixels[n], target) <= tolerance) {
+                    seen[n] = true;
+                    queue[tail++] = n;
+                }
+            }
+        }
+        for (int i = 0; i < tail; i++) {
+            pixels[queue[i]] = newColor;
+        }
+        return tail;
+    }
+
+    static int distance(int a, int b) {
+        int d = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            d = Math.max(d, Math.abs(((a >>> shift) & 0xFF) - ((b >>> shift) & 0xFF)));
+        }
+        return d;
+    }
+
+    // Random points of a width x height canvas, to seed the fills
+    static int[][] seeds(int width, int height, int count, long seed) {
+        Random random = new Random(seed);
+        int[][] seeds = new int[count][];
+        for (int i = 0; i < count; i++) {
+            seeds[i] = new int[] { random.nextInt(width), random.nextInt(height) };
+        }
+        return seeds;
+    }
+
+    // Fills canvas copies from random seeds with filler and with the reference: pixels, count
+    // and bounding box must match
+    static void checkAgainstReference(RegionFiller filler, int[] canvas, int width, int height) {
+        for (int[] seed : seeds(width, height, 25, canvas.length)) {
+            int[] expected = canvas.clone();
+            int[] actual = canvas.clone();
+            int count = referenceFill(expected, width, height, seed[0], seed[1], RED);
+            assertEquals(count, filler.fill(actual, width, height, seed[0], seed[1], RED));
+            assertArrayEquals(expected, actual);
+            assertEquals(count, filler.getFilledCount());
+            if (count > 0) {
+                checkBounds(canvas, actual, width, filler);
+            } else {
+                assertTrue(filler.isEmpty());
+            }
+        }
+    }
+
+    // The filler's bounding box is exactly the box of the pixels that changed
+    static void checkBounds(int[] before, int[] after, int width, RegionFiller filler) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != after[i]) {
+                minX = Math.min(minX, i % width);
+                maxX = Math.max(maxX, i % width);
+                minY = Math.min(minY, i / width);
+                maxY = Math.max(maxY, i / width);
+            }
+        }
+        assertEquals(minX, filler.getMinX());
+        assertEquals(minY, filler.getMinY());
+        assertEquals(maxX, filler.getMaxX());
+        assertEquals(maxY, filler.getMaxY());
+    }
+}
@@ -0,0 +1,59 @@
+package com.bosonshiggs.extendedcanvas.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.bosonshiggs.extendedcanvas.helpers.PixelMask;
+import com.bosonshiggs.extendedcanvas.helpers.ToleranceFiller;
+
+import org.junit.Test;
+
+// The tolerance fill against a reference that compares every channel of every neighbour
+public class ToleranceFillerTest {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    @Test
+    public void toleranceZeroMatchesReference() {
+        ToleranceFiller filler = new ToleranceFiller();
+        filler.setTolerance(0);
+        TestCanvases.checkAgainstReference(filler, TestCanvases.noise(WIDTH, HEIGHT, 4), WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void matchesReference() {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 5);
+        ToleranceFiller filler = new ToleranceFiller();
+        for (int tolerance : new int[] { 1, 7, 8, 127, 128, 255 }) {
+            filler.setTolerance(tolerance);
+            for (int[] seed : TestCanvases.seeds(WIDTH, HEIGHT, 10, tolerance)) {
+                int[] expected = canvas.clone();
+                int[] actual = canvas.clone();
+                int count = TestCanvases.referenceToleranceFill(expected, WIDTH, HEIGHT, seed[0], seed[1], TestCanvases.RED, tolerance);
+                assertEquals(count, filler.fill(actual, WIDTH, HEIGHT, seed[0], seed[1], TestCanvases.RED));
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void matchMaskMarksPixelsWithinTolerance() {
+        int[] canvas = TestCanvases.noise(WIDTH, HEIGHT, 6);
+        PixelMask mask = new PixelMask(WIDTH, HEIGHT);
+        for (int tolerance : new int[] { 0, 8, 200 }) {
+            ToleranceFiller.buildMatchMask(canvas, canvas.length, TestCanvases.WHITE, tolerance, mask);
+            for (int i = 0; i < canvas.length; i++) {
+                assertEquals("pixel " + i, TestCanvases.distance(canvas[i], TestCanvases.WHITE) <= tolerance, mask.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void toleranceIsClamped() {
+        ToleranceFiller filler = new ToleranceFiller();
+        filler.setTolerance(-5);
+        assertEquals(0, filler.getTolerance());
+        filler.setTolerance(1000);
+        assertEquals(255, filler.getTolerance());
+    }
+}